@@ -0,0 +1,144 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import gov.ornl.stucco.AlignmentBatcher;
+import gov.ornl.stucco.GraphConstructor;
+import gov.ornl.stucco.STIXNormalizer;
+import gov.ornl.stucco.preprocessors.PreprocessSTIX.Vertex;
+import gov.ornl.stucco.structured.DefaultExtractorProvider;
+import gov.ornl.stucco.structured.Extraction;
+import gov.ornl.stucco.structured.ExtractorFactory;
+import gov.ornl.stucco.structured.ExtractorRegistry;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-message path of the StructuredTransformer for each data source: looking up the extractor
+ * for a routing key, running it, and the whole path through to alignment, with the document
+ * service and Align replaced by in-memory stand-ins.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionBenchmark {
+	private static final String ROUTING_KEY_PREFIX = "stucco.in.structured.";
+
+	@Param({"argus", "nvd", "cve", "hone", "sophos", "bugtraq"})
+	public String source;
+
+	private String routingKey;
+	private String content;
+	private Map<String, String> metaDataMap;
+	private ExtractorRegistry registry;
+	private ExtractorFactory factory;
+	private STIXNormalizer stixNormalizer;
+	private GraphConstructor constructGraph;
+	private InMemoryGraphLoader loader;
+	private AlignmentBatcher batcher;
+
+	private static final AlignmentBatcher.Listener IGNORE = new AlignmentBatcher.Listener() {
+		@Override
+		public void committed() {
+		}
+
+		@Override
+		public void failed(RuntimeException e) {
+			throw e;
+		}
+	};
+
+	@Setup
+	public void setUp() throws IOException {
+		routingKey = ROUTING_KEY_PREFIX + source;
+		content = Payloads.message(source);
+		metaDataMap = new HashMap<String, String>();
+		metaDataMap.put(DefaultExtractorProvider.HOSTNAME_KEY, "bench-host");
+
+		LocalDocumentFetcher fetcher = new LocalDocumentFetcher();
+		registry = ExtractorRegistry.load(fetcher);
+		factory = registry.lookup(routingKey);
+		if (factory == null) {
+			throw new IllegalStateException("No extractor for " + routingKey);
+		}
+		if (factory.isDocumentGroup()) {
+			for (String item : content.split("\\r?\\n")) {
+				fetcher.add(item.split("\\s+")[0]);
+			}
+		}
+		if (factory.extract(content, metaDataMap) == null) {
+			throw new IllegalStateException("The sample payload for " + source + " extracts to nothing.");
+		}
+
+		stixNormalizer = new STIXNormalizer();
+		constructGraph = new GraphConstructor();
+		loader = new InMemoryGraphLoader();
+		batcher = new AlignmentBatcher(loader, 0, 0);
+	}
+
+	@Setup(Level.Iteration)
+	public void clearGraph() {
+		loader.clear();
+	}
+
+	@TearDown
+	public void tearDown() {
+		batcher.close();
+	}
+
+	@Benchmark
+	public ExtractorFactory lookup() {
+		return registry.lookup(routingKey);
+	}
+
+	@Benchmark
+	public Extraction extract() {
+		return registry.lookup(routingKey).extract(content, metaDataMap);
+	}
+
+	@Benchmark
+	public JSONObject extractAndConstructGraph() {
+		return toGraph(registry.lookup(routingKey).extract(content, metaDataMap));
+	}
+
+	@Benchmark
+	public int processMessage() {
+		batcher.add(toGraph(registry.lookup(routingKey).extract(content, metaDataMap)), IGNORE);
+		return loader.getVertexCount();
+	}
+
+	/**
+	 * Same steps as StructuredTransformer.generateGraph.
+	 */
+	private JSONObject toGraph(Extraction extraction) {
+		if (extraction.getGraph() != null) {
+			return extraction.getGraph();
+		}
+		Map<String, Vertex> stixElements;
+		if (extraction.getStixPackage() != null) {
+			stixElements = stixNormalizer.normalize(extraction.getStixPackage());
+		} else {
+			stixElements = stixNormalizer.normalize(extraction.getStixDocument());
+		}
+		return constructGraph.constructGraph(stixElements);
+	}
+}
@@ -0,0 +1,90 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import gov.ornl.stucco.GraphConstructor;
+import gov.ornl.stucco.STIXNormalizer;
+import gov.ornl.stucco.STIXSerializer;
+import gov.ornl.stucco.preprocessors.PreprocessSTIX.Vertex;
+import gov.ornl.stucco.structured.DefaultExtractorProvider;
+import gov.ornl.stucco.structured.Extraction;
+import gov.ornl.stucco.structured.ExtractorFactory;
+import gov.ornl.stucco.structured.ExtractorRegistry;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The STIX to graph round trip, normalization followed by GraphConstructor.constructGraph, on the
+ * STIX each sample payload extracts to.  Packages are normalized the way the transformers do it,
+ * through STIXNormalizer, and also from their XML text for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphConstructionBenchmark {
+
+	@Param({"nvd", "cve", "hone", "sophos", "bugtraq", "stix"})
+	public String source;
+
+	private Extraction extraction;
+	private String stixXML;
+	private STIXNormalizer stixNormalizer;
+	private GraphConstructor constructGraph;
+
+	@Setup
+	public void setUp() throws IOException {
+		String content = Payloads.message(source);
+		Map<String, String> metaDataMap = new HashMap<String, String>();
+		metaDataMap.put(DefaultExtractorProvider.HOSTNAME_KEY, "bench-host");
+		LocalDocumentFetcher fetcher = new LocalDocumentFetcher();
+		ExtractorFactory factory = ExtractorRegistry.load(fetcher).lookup("stucco.in.structured." + source);
+		if (factory.isDocumentGroup()) {
+			for (String item : content.split("\\r?\\n")) {
+				fetcher.add(item.split("\\s+")[0]);
+			}
+		}
+		extraction = factory.extract(content, metaDataMap);
+		if ((extraction == null) || (extraction.getGraph() != null)) {
+			throw new IllegalStateException("The sample payload for " + source + " does not extract to STIX.");
+		}
+		stixXML = (extraction.getStixPackage() != null) ? STIXSerializer.toXMLString(extraction.getStixPackage(), false) : extraction.getStixDocument();
+
+		stixNormalizer = new STIXNormalizer();
+		constructGraph = new GraphConstructor();
+	}
+
+	@Benchmark
+	public Map<String, Vertex> normalize() {
+		if (extraction.getStixPackage() != null) {
+			return stixNormalizer.normalize(extraction.getStixPackage());
+		}
+		return stixNormalizer.normalize(extraction.getStixDocument());
+	}
+
+	@Benchmark
+	public Map<String, Vertex> normalizeXML() {
+		return stixNormalizer.normalize(stixXML);
+	}
+
+	@Benchmark
+	public JSONObject normalizeAndConstructGraph() {
+		return constructGraph.constructGraph(normalize());
+	}
+}
@@ -0,0 +1,47 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gov.ornl.stucco.GraphLoader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Stands in for Align, merging subgraphs into maps in memory instead of the graph database.
+ * Vertices with the same id replace each other, which is enough to make the work proportional to
+ * the size of each subgraph, like a real load.
+ */
+public class InMemoryGraphLoader implements GraphLoader {
+	private final Map<String, Object> vertices = new HashMap<String, Object>();
+	private final List<Object> edges = new ArrayList<Object>();
+
+	@Override
+	public synchronized void load(JSONObject graph) {
+		JSONObject graphVertices = graph.optJSONObject("vertices");
+		if (graphVertices != null) {
+			for (String id : (Set<String>) graphVertices.keySet()) {
+				vertices.put(id, graphVertices.get(id));
+			}
+		}
+		JSONArray graphEdges = graph.optJSONArray("edges");
+		if (graphEdges != null) {
+			for (int i = 0; i < graphEdges.length(); i++) {
+				edges.add(graphEdges.get(i));
+			}
+		}
+	}
+
+	public synchronized int getVertexCount() {
+		return vertices.size();
+	}
+
+	public synchronized void clear() {
+		vertices.clear();
+		edges.clear();
+	}
+}
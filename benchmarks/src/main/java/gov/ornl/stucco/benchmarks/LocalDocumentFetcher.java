@@ -0,0 +1,48 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import gov.ornl.stucco.DocumentFetcher;
+import gov.pnnl.stucco.doc_service_client.DocServiceException;
+
+import org.json.JSONObject;
+
+/**
+ * Stands in for the document service, serving sample documents from memory, so benchmarks measure
+ * extraction rather than the network.
+ */
+public class LocalDocumentFetcher extends DocumentFetcher {
+	private final Map<String, String> documents = new HashMap<String, String>();
+
+	public LocalDocumentFetcher() {
+		super(null);
+	}
+
+	/**
+	 * Makes the sample document docId available, reading it now so fetches stay in memory.
+	 */
+	public void add(String docId) throws IOException {
+		JSONObject raw = new JSONObject();
+		raw.put("document", Payloads.document(docId));
+		documents.put(docId, raw.toString());
+	}
+
+	@Override
+	protected String retrieveDocument(String docId) throws DocServiceException {
+		String document = documents.get(docId);
+		if (document == null) {
+			throw new DocServiceException("No sample document " + docId);
+		}
+		return document;
+	}
+
+	@Override
+	protected JSONObject retrieveExtractedText(String docId) throws DocServiceException {
+		JSONObject text = new JSONObject();
+		text.put("document", new JSONObject(retrieveDocument(docId)).getString("document"));
+		text.put("title", docId);
+		return text;
+	}
+}
@@ -0,0 +1,44 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Loads the sample payloads under src/main/resources/payloads.  payloads/&lt;source&gt;.txt is the
+ * content of a message for that source; for document groups it lists "docId URL" lines, and each
+ * document is in payloads/docs/&lt;docId&gt;.txt.
+ */
+public final class Payloads {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Payloads() {
+	}
+
+	public static String message(String source) throws IOException {
+		return read("payloads/" + source + ".txt");
+	}
+
+	public static String document(String docId) throws IOException {
+		return read("payloads/docs/" + docId + ".txt");
+	}
+
+	private static String read(String resource) throws IOException {
+		InputStream in = Payloads.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException("No sample payload " + resource);
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package gov.ornl.stucco.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import gov.ornl.stucco.STIXFileWriter;
+import gov.ornl.stucco.STIXOutput;
+import gov.ornl.stucco.STIXSegmentWriter;
+
+import org.mitre.stix.stix_1.STIXPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing one STIX package to each of the file outputs, with the default flush settings, both as
+ * XML text and as a STIXPackage serialized by the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class STIXOutputBenchmark {
+	private static final int FLUSH_SIZE = 64 * 1024;
+	private static final long FLUSH_INTERVAL = 1000;
+	//keep the output from filling the disk during long runs
+	private static final long ROLL_SIZE = 256L * 1024 * 1024;
+
+	@Param({"plain", "segments", "segments-gzip"})
+	public String format;
+
+	private File directory;
+	private STIXOutput output;
+	private String stixXML;
+	private STIXPackage stixPackage;
+	private long sequence;
+
+	@Setup
+	public void setUp() throws IOException {
+		stixXML = Payloads.message("stix");
+		stixPackage = STIXPackage.fromXMLString(stixXML);
+		directory = File.createTempFile("stix-output", "");
+		directory.delete();
+		directory.mkdir();
+		String path = new File(directory, "stixOutput.xml").getPath();
+		if ("plain".equals(format)) {
+			output = new STIXFileWriter(path, FLUSH_SIZE, FLUSH_INTERVAL, STIXFileWriter.SyncPolicy.NONE, ROLL_SIZE, 0);
+		} else {
+			output = new STIXSegmentWriter(path, "segments-gzip".equals(format), FLUSH_SIZE, FLUSH_INTERVAL, STIXFileWriter.SyncPolicy.NONE, ROLL_SIZE, 0);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		output.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		output.write("stucco.in.structured.stix", "package-" + (sequence++), System.currentTimeMillis(), stixXML);
+	}
+
+	@Benchmark
+	public void writePackage() throws IOException {
+		output.write("stucco.in.structured.stix", "package-" + (sequence++), System.currentTimeMillis(), stixPackage);
+	}
+}
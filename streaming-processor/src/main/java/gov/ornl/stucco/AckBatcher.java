@@ -0,0 +1,158 @@
+package gov.ornl.stucco;
+
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Acknowledges processed messages cumulatively (basicAck with multiple=true) once batchSize
+ * messages have finished, or maxDelay ms after the oldest finished message, whichever comes first.
+ *
+ * Every delivery tag handed out on the channel must be registered with delivered() before it
+ * can be processed, so that a cumulative ack never covers a message that is still in flight.
+ * Nacks are sent immediately, after first flushing any acks below the nacked tag, so a
+ * cumulative ack is never sent across a message that has not been resolved yet.
+ *
+ * Acks and nacks are sent while holding channelLock, which whoever else uses the channel must hold
+ * too, since a Channel is not safe for concurrent use.
+ */
+public class AckBatcher {
+	private static final Logger logger = LoggerFactory.getLogger(AckBatcher.class);
+
+	private final Channel channel;
+	private final Object channelLock;
+	private final int batchSize;
+	private final long maxDelay;
+
+	//delivered to the application, but not yet acked or nacked
+	private final TreeSet<Long> inFlight = new TreeSet<Long>();
+	//finished processing, but the ack has not been sent yet
+	private final TreeSet<Long> completed = new TreeSet<Long>();
+
+	private final ScheduledExecutorService timer;
+	private ScheduledFuture<?> scheduledFlush;
+	private IOException timerFailure;
+
+	public AckBatcher(Channel channel, Object channelLock, int batchSize, long maxDelay) {
+		this.channel = channel;
+		this.channelLock = channelLock;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxDelay = maxDelay;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ack-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public synchronized void delivered(long deliveryTag) {
+		inFlight.add(deliveryTag);
+	}
+
+	public synchronized void complete(long deliveryTag) throws IOException {
+		rethrowTimerFailure();
+		if (!inFlight.remove(deliveryTag)) {
+			logger.warn("Completed deliveryTag=[" + deliveryTag + "] was not in flight.");
+			return;
+		}
+		completed.add(deliveryTag);
+		if (completed.size() >= batchSize) {
+			flush();
+		} else if ((scheduledFlush == null) && (maxDelay > 0)) {
+			scheduledFlush = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedFlush();
+				}
+			}, maxDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+		rethrowTimerFailure();
+		flush();
+		inFlight.remove(deliveryTag);
+		synchronized (channelLock) {
+			channel.basicNack(deliveryTag, false, requeue);
+		}
+	}
+
+	/**
+	 * Sends a single cumulative ack covering every completed message below the oldest message
+	 * still in flight.  Completed messages above that point stay pending until it resolves.
+	 */
+	public synchronized void flush() throws IOException {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if (completed.isEmpty()) {
+			return;
+		}
+		Long ackUpTo;
+		if (inFlight.isEmpty()) {
+			ackUpTo = completed.last();
+		} else {
+			ackUpTo = completed.lower(inFlight.first());
+		}
+		if (ackUpTo != null) {
+			synchronized (channelLock) {
+				channel.basicAck(ackUpTo, true);
+			}
+			completed.headSet(ackUpTo, true).clear();
+		}
+		if (!completed.isEmpty() && (maxDelay > 0)) {
+			//still waiting on an older message, try again later
+			scheduledFlush = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedFlush();
+				}
+			}, maxDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			if (channel.isOpen()) {
+				flush();
+			}
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+	private synchronized void timedFlush() {
+		scheduledFlush = null;
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.error("Error sending batched ack to data publisher.", e);
+			timerFailure = e;
+		}
+	}
+
+	private void rethrowTimerFailure() throws IOException {
+		if (timerFailure != null) {
+			IOException e = timerFailure;
+			timerFailure = null;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package gov.ornl.stucco;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the subgraphs of consecutive messages into one graph, so that alignment loads them in one
+ * call instead of one call per message.  A batch is loaded once it holds maxElements vertices and
+ * edges, or maxDelay ms after its first subgraph was added.
+ *
+ * Each subgraph comes with a Listener that is told once its batch has been loaded, which is where
+ * the message should be acked.  If a batch fails to load, its subgraphs are retried one at a time,
+ * so a single bad subgraph only fails its own message.
+ *
+ * Only graphs of the form {"vertices": {id: vertex, ...}, "edges": [edge, ...]} are merged.  A graph
+ * with any other shape, or with a vertex id already in the batch, starts a new batch.
+ *
+ * With a BlockingIO, batches are loaded on its threads instead of the one that filled them.  They
+ * are still loaded one at a time, in the order they were made: Align is not thread-safe, and the
+ * vertex ids of a subgraph are made up when it is extracted, so there is no telling which batches
+ * touch the same vertices.
+ */
+public class AlignmentBatcher {
+	private static final Logger logger = LoggerFactory.getLogger(AlignmentBatcher.class);
+
+	private static final String VERTICES = "vertices";
+	private static final String EDGES = "edges";
+
+	public interface Listener {
+		/** the subgraph was loaded */
+		public void committed();
+
+		/** the subgraph could not be loaded */
+		public void failed(RuntimeException e);
+	}
+
+	private final GraphLoader loader;
+	private final int maxElements;
+	private final long maxDelay;
+	private final BlockingIO io;
+	//batches handed to io that haven't finished loading, oldest first
+	private final List<Batch> loading = new ArrayList<Batch>();
+
+	private JSONObject batchVertices = new JSONObject();
+	private JSONArray batchEdges = new JSONArray();
+	private int batchElements;
+	private final List<JSONObject> graphs = new ArrayList<JSONObject>();
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	private final ScheduledExecutorService timer;
+	private ScheduledFuture<?> scheduledFlush;
+
+	/**
+	 * @param alignment where subgraphs are loaded
+	 * @param maxElements vertices plus edges that trigger a load, 0 or less to load every subgraph on its own
+	 * @param maxDelay maximum time (ms) a subgraph waits to be loaded
+	 */
+	public AlignmentBatcher(Align alignment, int maxElements, long maxDelay) {
+		this(alignment, maxElements, maxDelay, null);
+	}
+
+	/**
+	 * @param alignment where subgraphs are loaded
+	 * @param maxElements vertices plus edges that trigger a load, 0 or less to load every subgraph on its own
+	 * @param maxDelay maximum time (ms) a subgraph waits to be loaded
+	 * @param io where batches are loaded, or null to load them on the thread that fills them
+	 */
+	public AlignmentBatcher(final Align alignment, int maxElements, long maxDelay, BlockingIO io) {
+		this(new GraphLoader() {
+			@Override
+			public void load(JSONObject graph) {
+				alignment.load(graph);
+			}
+		}, maxElements, maxDelay, io);
+	}
+
+	/**
+	 * @param loader where subgraphs are loaded
+	 * @param maxElements vertices plus edges that trigger a load, 0 or less to load every subgraph on its own
+	 * @param maxDelay maximum time (ms) a subgraph waits to be loaded
+	 */
+	public AlignmentBatcher(GraphLoader loader, int maxElements, long maxDelay) {
+		this(loader, maxElements, maxDelay, null);
+	}
+
+	/**
+	 * @param loader where subgraphs are loaded
+	 * @param maxElements vertices plus edges that trigger a load, 0 or less to load every subgraph on its own
+	 * @param maxDelay maximum time (ms) a subgraph waits to be loaded
+	 * @param io where batches are loaded, or null to load them on the thread that fills them
+	 */
+	public AlignmentBatcher(GraphLoader loader, int maxElements, long maxDelay, BlockingIO io) {
+		this.loader = loader;
+		this.maxElements = maxElements;
+		this.maxDelay = maxDelay;
+		this.io = io;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "alignment-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public synchronized void add(JSONObject graph, Listener listener) {
+		if (maxElements <= 0) {
+			load(new Batch(graph, listener));
+			return;
+		}
+		if (!isMergeable(graph)) {
+			flush();
+			load(new Batch(graph, listener));
+			return;
+		}
+
+		JSONObject vertices = graph.optJSONObject(VERTICES);
+		JSONArray edges = graph.optJSONArray(EDGES);
+		if ((vertices != null) && overlapsBatch(vertices)) {
+			flush();
+		}
+		if (vertices != null) {
+			for (String id : keys(vertices)) {
+				batchVertices.put(id, vertices.get(id));
+			}
+			batchElements += vertices.length();
+		}
+		if (edges != null) {
+			for (int i = 0; i < edges.length(); i++) {
+				batchEdges.put(edges.get(i));
+			}
+			batchElements += edges.length();
+		}
+		graphs.add(graph);
+		listeners.add(listener);
+
+		if (batchElements >= maxElements) {
+			flush();
+		} else if ((scheduledFlush == null) && (maxDelay > 0)) {
+			scheduledFlush = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, maxDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Loads the current batch, if any.
+	 */
+	public synchronized void flush() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if (graphs.isEmpty()) {
+			return;
+		}
+		JSONObject merged = new JSONObject();
+		merged.put(VERTICES, batchVertices);
+		merged.put(EDGES, batchEdges);
+		Batch batch = new Batch(new ArrayList<JSONObject>(graphs), new ArrayList<Listener>(listeners), merged, batchElements);
+		graphs.clear();
+		listeners.clear();
+		batchVertices = new JSONObject();
+		batchEdges = new JSONArray();
+		batchElements = 0;
+		load(batch);
+	}
+
+	/**
+	 * Loads the current batch, and waits for the batches being loaded on the BlockingIO threads.
+	 */
+	public void close() {
+		flush();
+		synchronized (loading) {
+			while (!loading.isEmpty()) {
+				try {
+					loading.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		timer.shutdownNow();
+	}
+
+	private void load(final Batch batch) {
+		if (io == null) {
+			batch.load();
+			return;
+		}
+		synchronized (loading) {
+			loading.add(batch);
+		}
+		io.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					awaitTurn(batch);
+					io.getAlignmentPermits().acquire();
+					try {
+						batch.load();
+					} finally {
+						io.getAlignmentPermits().release();
+					}
+				} catch (InterruptedException e) {
+					RuntimeException failure = new RuntimeException("Interrupted before the batch was loaded.", e);
+					for (Listener listener : batch.listeners) {
+						listener.failed(failure);
+					}
+				} finally {
+					synchronized (loading) {
+						loading.remove(batch);
+						loading.notifyAll();
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits until every batch handed over before this one has finished loading.
+	 */
+	private void awaitTurn(Batch batch) throws InterruptedException {
+		synchronized (loading) {
+			while (loading.get(0) != batch) {
+				loading.wait();
+			}
+		}
+	}
+
+	private void loadOne(JSONObject graph, Listener listener) {
+		try {
+			loader.load(graph);
+		} catch (RuntimeException e) {
+			listener.failed(e);
+			return;
+		}
+		listener.committed();
+	}
+
+	/**
+	 * The subgraphs of one load.
+	 */
+	private class Batch {
+		final List<JSONObject> graphs;
+		final List<Listener> listeners;
+		final JSONObject merged;
+		final int elements;
+
+		Batch(JSONObject graph, Listener listener) {
+			this(Collections.singletonList(graph), Collections.singletonList(listener), graph, 0);
+		}
+
+		Batch(List<JSONObject> graphs, List<Listener> listeners, JSONObject merged, int elements) {
+			this.graphs = graphs;
+			this.listeners = listeners;
+			this.merged = merged;
+			this.elements = elements;
+		}
+
+		void load() {
+			if (graphs.size() == 1) {
+				loadOne(graphs.get(0), listeners.get(0));
+				return;
+			}
+			try {
+				loader.load(merged);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to load batch of " + graphs.size() + " subgraphs, retrying them one at a time.", e);
+				for (int i = 0; i < graphs.size(); i++) {
+					loadOne(graphs.get(i), listeners.get(i));
+				}
+				return;
+			}
+			logger.debug("Loaded batch of " + graphs.size() + " subgraphs with " + elements + " vertices and edges.");
+			for (Listener listener : listeners) {
+				listener.committed();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> keys(JSONObject object) {
+		return (Set<String>) object.keySet();
+	}
+
+	private static boolean isMergeable(JSONObject graph) {
+		for (String key : keys(graph)) {
+			if (VERTICES.equals(key)) {
+				if (graph.optJSONObject(VERTICES) == null) {
+					return false;
+				}
+			} else if (EDGES.equals(key)) {
+				if (graph.optJSONArray(EDGES) == null) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean overlapsBatch(JSONObject vertices) {
+		for (String id : keys(vertices)) {
+			if (batchVertices.has(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,225 @@
+package gov.ornl.stucco;
+
+import gov.ornl.stucco.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops taking messages off the queue while the transformer is too far behind, so that a slow or
+ * failing graph database backs work up in RabbitMQ rather than on the heap.
+ *
+ * The transformer reports each message as it is received, the bytes of content fetched for it, the
+ * alignment latency of its subgraph, and when it is acked or requeued.  Consumption pauses when the
+ * messages or bytes in flight, or the recent alignment latency, reach their limits, and resumes once
+ * all of them are back under resumeRatio of their limits.  In push mode the consumers are cancelled
+ * while paused, so the broker stops delivering; in pull mode messages are just not fetched.
+ *
+ * Alignment latency is only measured as subgraphs are loaded, so while it alone keeps consumption
+ * paused, a single message is let through whenever nothing is in flight, to measure the database
+ * again.  It is taken with RabbitMQConsumer.probeMessage(), so in push mode the consumers and their
+ * prefetch windows stay cancelled.
+ */
+public class BackpressureController {
+	private static final Logger logger = LoggerFactory.getLogger(BackpressureController.class);
+	//weight of each new latency sample in the moving average
+	private static final double LATENCY_ALPHA = 0.2;
+
+	public enum Admission {
+		/** take no message */
+		PAUSED,
+		/** take one message with RabbitMQConsumer.probeMessage() */
+		PROBE,
+		/** take messages as usual */
+		OPEN
+	}
+
+	private final RabbitMQConsumer consumer;
+	private final String name;
+	private final int maxInFlightMessages;
+	private final long maxInFlightBytes;
+	private final long maxAlignLatencyNanos;
+	private final double resumeRatio;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Map<Long, Long> inFlight = new HashMap<Long, Long>();
+	private long inFlightBytes;
+	private double alignLatencyNanos;
+	private boolean paused;
+	private long pausedNanos;
+	private long pauses;
+
+	/**
+	 * @param consumer the consumer to pause and resume
+	 * @param name names the transformer in the log and metrics
+	 * @param maxInFlightMessages pause at this many unacked messages, 0 for no limit
+	 * @param maxInFlightBytes pause at this many bytes of unacked messages and their content, 0 for no limit
+	 * @param maxAlignLatency pause when the average alignment latency (ms) reaches this, 0 for no limit
+	 * @param resumeRatio resume when everything is under this fraction of its limit
+	 */
+	public BackpressureController(RabbitMQConsumer consumer, String name, int maxInFlightMessages, long maxInFlightBytes, long maxAlignLatency, double resumeRatio) {
+		this.consumer = consumer;
+		this.name = name;
+		this.maxInFlightMessages = maxInFlightMessages;
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.maxAlignLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxAlignLatency);
+		this.resumeRatio = Math.min(1.0, Math.max(0.0, resumeRatio));
+	}
+
+	/**
+	 * Creates the controller described by the maxInFlightMessages, maxInFlightBytes, maxAlignLatency
+	 * and resumeRatio settings.
+	 * @return the controller, or null if no limit is set
+	 */
+	public static BackpressureController fromConfig(Map<String, Object> configMap, RabbitMQConsumer consumer, String name) {
+		int maxInFlightMessages = ConfigLoader.getInt(configMap, "maxInFlightMessages", 0);
+		long maxInFlightBytes = ConfigLoader.getLong(configMap, "maxInFlightBytes", 0);
+		long maxAlignLatency = ConfigLoader.getLong(configMap, "maxAlignLatency", 0);
+		if ((maxInFlightMessages <= 0) && (maxInFlightBytes <= 0) && (maxAlignLatency <= 0)) {
+			return null;
+		}
+		return new BackpressureController(consumer, name, maxInFlightMessages, maxInFlightBytes, maxAlignLatency,
+				ConfigLoader.getDouble(configMap, "resumeRatio", 0.75));
+	}
+
+	/**
+	 * Called before taking a message off the queue.  While over the limits, pauses consumption and
+	 * waits up to maxWait for in-flight work to drain.
+	 * @return whether a message may be taken, and how
+	 */
+	public Admission admit(long maxWait, TimeUnit unit) throws IOException {
+		boolean pause = false;
+		boolean resume = false;
+		lock.lock();
+		try {
+			if (!paused) {
+				if (!overLimit()) {
+					return Admission.OPEN;
+				}
+				paused = true;
+				pausedNanos = System.nanoTime();
+				pauses++;
+				pause = true;
+			} else {
+				long remaining = unit.toNanos(maxWait);
+				while (!underResumeLimit() && !inFlight.isEmpty() && (remaining > 0)) {
+					remaining = changed.awaitNanos(remaining);
+				}
+				if (!underResumeLimit()) {
+					//with nothing in flight, only the latency can be over its limit
+					return inFlight.isEmpty() ? Admission.PROBE : Admission.PAUSED;
+				}
+				paused = false;
+				resume = true;
+			}
+		} catch (InterruptedException e) {
+			//left to the caller's next wait to notice
+			Thread.currentThread().interrupt();
+			return Admission.PAUSED;
+		} finally {
+			lock.unlock();
+		}
+		if (pause) {
+			logger.info("Pausing consumption: " + this);
+			Metrics.increment(Metrics.BACKPRESSURE_PAUSES, name);
+			consumer.pauseConsuming();
+			return Admission.PAUSED;
+		}
+		if (resume) {
+			logger.info("Resuming consumption after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pausedNanos) + " ms: " + this);
+			consumer.resumeConsuming();
+		}
+		return Admission.OPEN;
+	}
+
+	/**
+	 * Counts a message taken off the queue as in flight.
+	 */
+	public void received(long deliveryTag, long bytes) {
+		lock.lock();
+		try {
+			Long previous = inFlight.put(deliveryTag, bytes);
+			inFlightBytes += bytes - ((previous == null) ? 0 : previous);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the content fetched for an in-flight message to its bytes.
+	 */
+	public void addBytes(long deliveryTag, long bytes) {
+		lock.lock();
+		try {
+			Long previous = inFlight.get(deliveryTag);
+			if (previous != null) {
+				inFlight.put(deliveryTag, previous + bytes);
+				inFlightBytes += bytes;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops counting a message once it is acked or requeued.
+	 */
+	public void finished(long deliveryTag) {
+		lock.lock();
+		try {
+			Long bytes = inFlight.remove(deliveryTag);
+			if (bytes != null) {
+				inFlightBytes -= bytes;
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a sample to the moving average of alignment latency.
+	 * @param startNanos System.nanoTime() when the subgraph was handed to alignment
+	 */
+	public void alignmentLatency(long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		lock.lock();
+		try {
+			alignLatencyNanos = (alignLatencyNanos == 0) ? nanos : (LATENCY_ALPHA * nanos) + ((1 - LATENCY_ALPHA) * alignLatencyNanos);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean overLimit() {
+		return ((maxInFlightMessages > 0) && (inFlight.size() >= maxInFlightMessages))
+				|| ((maxInFlightBytes > 0) && (inFlightBytes >= maxInFlightBytes))
+				|| ((maxAlignLatencyNanos > 0) && (alignLatencyNanos >= maxAlignLatencyNanos));
+	}
+
+	private boolean underResumeLimit() {
+		return ((maxInFlightMessages <= 0) || (inFlight.size() <= (int) (maxInFlightMessages * resumeRatio)))
+				&& ((maxInFlightBytes <= 0) || (inFlightBytes <= (long) (maxInFlightBytes * resumeRatio)))
+				&& ((maxAlignLatencyNanos <= 0) || (alignLatencyNanos <= maxAlignLatencyNanos * resumeRatio));
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return inFlight.size() + " messages and " + inFlightBytes + " bytes in flight, alignment latency "
+					+ TimeUnit.NANOSECONDS.toMillis((long) alignLatencyNanos) + " ms, " + pauses + " pauses";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
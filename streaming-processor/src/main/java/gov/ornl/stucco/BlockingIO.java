@@ -0,0 +1,156 @@
+package gov.ornl.stucco;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the calls that spend most of their time blocked on the network, document service fetches
+ * and alignment loads, off the threads that process messages, so that many of them can be in
+ * flight at once.  On a JVM with virtual threads (Java 21 and later) each call gets its own virtual
+ * thread, so thousands of calls can wait without thousands of platform threads.  On older JVMs
+ * they run on a fixed pool of fallbackThreads daemon threads.
+ *
+ * Each downstream service has its own Semaphore, so neither can be sent more than its configured
+ * number of concurrent calls, however many are waiting.
+ */
+public class BlockingIO {
+	private static final Logger logger = LoggerFactory.getLogger(BlockingIO.class);
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final Semaphore docServicePermits;
+	private final Semaphore alignmentPermits;
+
+	/**
+	 * @param useVirtualThreads run each call on a virtual thread, if the JVM has them
+	 * @param fallbackThreads threads to use when there are no virtual threads
+	 * @param docServiceConcurrency most concurrent document service calls
+	 * @param alignmentConcurrency most concurrent alignment loads, at most 1 while Align is not thread-safe
+	 */
+	public BlockingIO(boolean useVirtualThreads, int fallbackThreads, int docServiceConcurrency, int alignmentConcurrency) {
+		ExecutorService virtualExecutor = useVirtualThreads ? newVirtualThreadExecutor() : null;
+		if (virtualExecutor != null) {
+			this.executor = virtualExecutor;
+			this.virtualThreads = true;
+		} else {
+			final AtomicInteger threadCount = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(Math.max(1, fallbackThreads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "blocking-io-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.virtualThreads = false;
+		}
+		//fair, so that calls reach each service in the order they were made
+		this.docServicePermits = new Semaphore(Math.max(1, docServiceConcurrency), true);
+		if (alignmentConcurrency > 1) {
+			logger.warn("alignmentConcurrency " + alignmentConcurrency + " is not supported, Align can only load one subgraph at a time.");
+		}
+		this.alignmentPermits = new Semaphore(1, true);
+	}
+
+	/**
+	 * Creates the executor described by the "io" config section: mode (sync, threads or virtual),
+	 * fallbackThreads, docServiceConcurrency and alignmentConcurrency.
+	 * @return the executor, or null in sync mode, where blocking calls stay on the calling thread
+	 */
+	public static BlockingIO fromConfig(Map<String, Object> configMap) {
+		String mode = ConfigLoader.getString(configMap, "mode", "sync");
+		if ("sync".equalsIgnoreCase(mode)) {
+			return null;
+		}
+		BlockingIO io = new BlockingIO("virtual".equalsIgnoreCase(mode), ConfigLoader.getInt(configMap, "fallbackThreads", 64),
+				ConfigLoader.getInt(configMap, "docServiceConcurrency", 64), ConfigLoader.getInt(configMap, "alignmentConcurrency", 1));
+		if ("virtual".equalsIgnoreCase(mode) && !io.virtualThreads) {
+			logger.warn("Virtual threads are not available on Java " + System.getProperty("java.version") + ", using a pool of platform threads.");
+		}
+		return io;
+	}
+
+	/**
+	 * Runs task on its own thread.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Runs task on its own thread while holding one of permits.
+	 */
+	public <T> Future<T> submit(final Semaphore permits, final Callable<T> task) {
+		return executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				permits.acquire();
+				try {
+					return task.call();
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public Semaphore getDocServicePermits() {
+		return docServicePermits;
+	}
+
+	public Semaphore getAlignmentPermits() {
+		return alignmentPermits;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Waits up to timeout for the calls in flight to finish.
+	 * @return true if they all finished
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		executor.shutdown();
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively, so this still builds
+	 * and runs on the Java 7 target.
+	 * @return the executor, or null if the JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			logger.warn("Could not create virtual thread executor.", e);
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (virtualThreads ? "virtual threads" : "platform threads") + ", " + docServicePermits.availablePermits() + " document service and "
+				+ alignmentPermits.availablePermits() + " alignment permits free";
+	}
+}
@@ -0,0 +1,82 @@
+package gov.ornl.stucco;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Remembers how many chunks of each partly processed message are done, so that a message
+ * redelivered after a crash can skip them.  Progress is kept in a small properties file, which is
+ * rewritten to a temporary file and renamed over the old one, so it is never left half written.
+ *
+ * Progress is stored along with the chunk size it was made with, and ignored if the chunk size has
+ * changed since, because the chunks would no longer line up.
+ */
+public class ChunkCheckpointStore {
+	private final File file;
+	private final File tempFile;
+	private final Properties checkpoints = new Properties();
+
+	public ChunkCheckpointStore(String path) throws IOException {
+		this.file = new File(path);
+		this.tempFile = new File(path + ".tmp");
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				checkpoints.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of chunks of the message that are done, 0 if there is no usable checkpoint
+	 */
+	public synchronized int getCompleted(String messageKey, int chunkSize) {
+		String value = checkpoints.getProperty(messageKey);
+		if (value == null) {
+			return 0;
+		}
+		String[] fields = value.split(":");
+		try {
+			if ((fields.length == 2) && (Integer.parseInt(fields[0]) == chunkSize)) {
+				return Integer.parseInt(fields[1]);
+			}
+		} catch (NumberFormatException e) {
+			//treat as no checkpoint
+		}
+		return 0;
+	}
+
+	public synchronized void setCompleted(String messageKey, int chunkSize, int completed) throws IOException {
+		checkpoints.setProperty(messageKey, chunkSize + ":" + completed);
+		save();
+	}
+
+	/**
+	 * Forgets a message once all of it is done.
+	 */
+	public synchronized void remove(String messageKey) throws IOException {
+		if (checkpoints.remove(messageKey) != null) {
+			save();
+		}
+	}
+
+	private void save() throws IOException {
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			checkpoints.store(out, "completed chunks of partly processed messages");
+			out.flush();
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -26,5 +26,35 @@ public class ConfigLoader {
 		subMap = configMap.get(configHeading);
 		return subMap;
 	}
+	
+	/**
+	 * Helpers for optional settings, which fall back to a default value when the key is missing.
+	 */
+	public static String getString(Map<String, Object> configMap, String key, String defaultValue) {
+		if ((configMap == null) || (configMap.get(key) == null)) {
+			return defaultValue;
+		}
+		return String.valueOf(configMap.get(key));
+	}
+	
+	public static int getInt(Map<String, Object> configMap, String key, int defaultValue) {
+		String value = getString(configMap, key, null);
+		return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+	}
+	
+	public static long getLong(Map<String, Object> configMap, String key, long defaultValue) {
+		String value = getString(configMap, key, null);
+		return (value == null) ? defaultValue : Long.parseLong(value.trim());
+	}
+	
+	public static double getDouble(Map<String, Object> configMap, String key, double defaultValue) {
+		String value = getString(configMap, key, null);
+		return (value == null) ? defaultValue : Double.parseDouble(value.trim());
+	}
+	
+	public static boolean getBoolean(Map<String, Object> configMap, String key, boolean defaultValue) {
+		String value = getString(configMap, key, null);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
 
 }
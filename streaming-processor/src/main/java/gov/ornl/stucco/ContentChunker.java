@@ -0,0 +1,14 @@
+package gov.ornl.stucco;
+
+import java.io.IOException;
+
+/**
+ * Splits a document into chunks that an extractor can handle one at a time.
+ */
+public interface ContentChunker {
+
+	/**
+	 * @return the next chunk, or null once the whole document has been returned
+	 */
+	public String nextChunk() throws IOException;
+}
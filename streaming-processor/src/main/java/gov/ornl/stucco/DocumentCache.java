@@ -0,0 +1,139 @@
+package gov.ornl.stucco;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of fetched documents, bounded by the approximate number of bytes the
+ * cached strings take up on the heap.
+ *
+ * If a MappedDocumentStore is given, documents evicted from memory are moved there, and looked up
+ * there on a memory miss.
+ */
+public class DocumentCache {
+	//rough per-entry overhead of the map entry and the two String objects
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final long maxBytes;
+	private final MappedDocumentStore diskStore;
+	//access ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes approximate heap space to use
+	 * @param diskStore second tier for evicted documents, or null
+	 */
+	public DocumentCache(long maxBytes, MappedDocumentStore diskStore) {
+		this.maxBytes = maxBytes;
+		this.diskStore = diskStore;
+	}
+
+	/**
+	 * Creates the cache described by the cacheSize, diskCachePath and diskCacheSize settings.
+	 * @return the cache, or null if cacheSize is 0
+	 */
+	public static DocumentCache fromConfig(Map<String, Object> configMap) throws IOException {
+		long cacheSize = ConfigLoader.getLong(configMap, "cacheSize", 0);
+		if (cacheSize <= 0) {
+			return null;
+		}
+		MappedDocumentStore diskStore = null;
+		String diskCachePath = ConfigLoader.getString(configMap, "diskCachePath", "");
+		long diskCacheSize = ConfigLoader.getLong(configMap, "diskCacheSize", 0);
+		if (!diskCachePath.isEmpty() && (diskCacheSize > 0)) {
+			diskStore = new MappedDocumentStore(diskCachePath, diskCacheSize);
+		}
+		return new DocumentCache(cacheSize, diskStore);
+	}
+
+	/**
+	 * @return the cached value, or null if it isn't cached
+	 */
+	public String get(String key) {
+		String value;
+		synchronized (this) {
+			value = entries.get(key);
+		}
+		if (value != null) {
+			hits.incrementAndGet();
+			return value;
+		}
+		if (diskStore != null) {
+			value = diskStore.get(key);
+			if (value != null) {
+				diskHits.incrementAndGet();
+				put(key, value);
+				return value;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(String key, String value) {
+		long size = sizeOf(key, value);
+		if (size > maxBytes) {
+			if (diskStore != null) {
+				diskStore.put(key, value);
+			}
+			return;
+		}
+		synchronized (this) {
+			String previous = entries.put(key, value);
+			if (previous != null) {
+				bytes -= sizeOf(key, previous);
+			}
+			bytes += size;
+			Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+			while (bytes > maxBytes) {
+				Map.Entry<String, String> entry = eldest.next();
+				bytes -= sizeOf(entry.getKey(), entry.getValue());
+				eldest.remove();
+				evictions.incrementAndGet();
+				if (diskStore != null) {
+					diskStore.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DocumentCache[entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits +
+				", diskHits=" + diskHits + ", misses=" + misses + ", evictions=" + evictions +
+				((diskStore != null) ? ", diskEntries=" + diskStore.size() : "") + "]";
+	}
+
+	private static long sizeOf(String key, String value) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+	}
+}
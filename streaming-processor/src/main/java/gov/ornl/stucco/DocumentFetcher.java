@@ -0,0 +1,332 @@
+package gov.ornl.stucco;
+
+import gov.ornl.stucco.metrics.Metrics;
+import gov.pnnl.stucco.doc_service_client.DocServiceClient;
+import gov.pnnl.stucco.doc_service_client.DocServiceException;
+import gov.pnnl.stucco.doc_service_client.DocumentObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves document content from the document service, through a DocumentCache if one is given,
+ * so redelivered messages and documents shared between messages are only fetched once.
+ *
+ * With a BlockingIO, document service calls are capped by its document service permits, group
+ * documents are fetched on its threads, and documents can be prefetched while the message waits
+ * for a worker.
+ */
+public class DocumentFetcher {
+	private static final Logger logger = LoggerFactory.getLogger(DocumentFetcher.class);
+
+	private static final String DOCUMENT_PREFIX = "document:";
+	private static final String TEXT_PREFIX = "text:";
+
+	/**
+	 * One document of a group message.
+	 */
+	public static class GroupDocument {
+		public final String docId;
+		public final String sourceURL;
+		public final String content;
+
+		public GroupDocument(String docId, String sourceURL, String content) {
+			this.docId = docId;
+			this.sourceURL = sourceURL;
+			this.content = content;
+		}
+	}
+
+	private final DocServiceClient docClient;
+	private final DocumentCache cache;
+	private final BlockingIO io;
+	//fetches the documents of a group in parallel, null to fetch them one after another or on io
+	private final ExecutorService groupExecutor;
+
+	public DocumentFetcher(DocServiceClient docClient) {
+		this(docClient, null, 1);
+	}
+
+	/**
+	 * @param cache where fetched documents are kept, or null
+	 * @param fetchThreads maximum number of documents of a group that are fetched at once
+	 */
+	public DocumentFetcher(DocServiceClient docClient, DocumentCache cache, int fetchThreads) {
+		this(docClient, cache, fetchThreads, null);
+	}
+
+	/**
+	 * @param cache where fetched documents are kept, or null
+	 * @param fetchThreads maximum number of documents of a group that are fetched at once, ignored with io
+	 * @param io where document service calls are made, or null to make them on the calling thread
+	 */
+	public DocumentFetcher(DocServiceClient docClient, DocumentCache cache, int fetchThreads, BlockingIO io) {
+		this.docClient = docClient;
+		this.cache = cache;
+		this.io = io;
+		if ((io == null) && (fetchThreads > 1)) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			groupExecutor = Executors.newFixedThreadPool(fetchThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "document-fetcher-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			groupExecutor = null;
+		}
+	}
+
+	/**
+	 * @return the raw document text stored under docId
+	 */
+	public String fetchDocument(String docId) throws DocServiceException {
+		if (cache != null) {
+			String cached = cache.get(DOCUMENT_PREFIX + docId);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		JSONObject jsonContent;
+		acquireDocService();
+		try {
+			jsonContent = new JSONObject(retrieveDocument(docId));
+		} finally {
+			releaseDocService();
+		}
+		String content = (String) jsonContent.get("document");
+		if (cache != null) {
+			cache.put(DOCUMENT_PREFIX + docId, content);
+		}
+		return content;
+	}
+
+	/**
+	 * @return the extracted text of docId, with "document" and "title" fields
+	 */
+	public JSONObject fetchExtractedText(String docId) throws DocServiceException {
+		if (cache != null) {
+			String cached = cache.get(TEXT_PREFIX + docId);
+			if (cached != null) {
+				return new JSONObject(cached);
+			}
+		}
+		JSONObject text;
+		acquireDocService();
+		try {
+			text = retrieveExtractedText(docId);
+		} finally {
+			releaseDocService();
+		}
+		if (cache != null) {
+			cache.put(TEXT_PREFIX + docId, text.toString());
+		}
+		return text;
+	}
+
+	/**
+	 * Starts fetching a document on the BlockingIO threads, see await().  Without a BlockingIO it is
+	 * fetched right away.
+	 * @param routingKey the fetch time is recorded under
+	 */
+	public Future<String> prefetchDocument(final String docId, String routingKey) {
+		return prefetch(routingKey, new Callable<String>() {
+			@Override
+			public String call() throws DocServiceException {
+				return fetchDocument(docId);
+			}
+		});
+	}
+
+	/**
+	 * Starts fetching the extracted text of a document on the BlockingIO threads, see await().
+	 * Without a BlockingIO it is fetched right away.
+	 * @param routingKey the fetch time is recorded under
+	 */
+	public Future<JSONObject> prefetchExtractedText(final String docId, String routingKey) {
+		return prefetch(routingKey, new Callable<JSONObject>() {
+			@Override
+			public JSONObject call() throws DocServiceException {
+				return fetchExtractedText(docId);
+			}
+		});
+	}
+
+	/**
+	 * Waits for a prefetch to finish.
+	 * @return what was fetched
+	 * @throws DocServiceException if the fetch failed, or the wait was interrupted
+	 */
+	public static <T> T await(Future<T> prefetch) throws DocServiceException {
+		try {
+			return prefetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocServiceException("Interrupted while fetching document.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DocServiceException) {
+				throw (DocServiceException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	private <T> Future<T> prefetch(final String routingKey, final Callable<T> fetch) {
+		Callable<T> timedFetch = new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long start = System.nanoTime();
+				T fetched = fetch.call();
+				Metrics.record(Metrics.DOC_FETCH, routingKey, start);
+				return fetched;
+			}
+		};
+		if (io != null) {
+			return io.submit(timedFetch);
+		}
+		FutureTask<T> task = new FutureTask<T>(timedFetch);
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Fetches every document of a group message, which lists one "docId sourceURL" per line.  If
+	 * any fetch fails, the ones still running are cancelled and its exception is thrown.
+	 * @return the documents, in the order they are listed
+	 */
+	public List<GroupDocument> fetchGroup(String content) throws DocServiceException {
+		String[] items = content.split("\\r?\\n");
+		final String[] docIds = new String[items.length];
+		String[] sourceURLs = new String[items.length];
+		for (int i = 0; i < items.length; i++) {
+			String[] fields = items[i].split("\\s+");
+			docIds[i] = fields[0];
+			sourceURLs[i] = fields[1];
+		}
+		
+		final String[] contents = new String[items.length];
+		if (((groupExecutor == null) && (io == null)) || (items.length == 1)) {
+			for (int i = 0; i < items.length; i++) {
+				try {
+					contents[i] = fetchDocument(docIds[i]);
+				} catch (DocServiceException e) {
+					logger.error("Could not fetch document '" + docIds[i] + "' from Document-Service. URL was: " + sourceURLs[i], e);
+					throw e;
+				}
+			}
+		} else {
+			CompletionService<Integer> completion = new ExecutorCompletionService<Integer>((io != null) ? io.getExecutor() : groupExecutor);
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>(items.length);
+			for (int i = 0; i < items.length; i++) {
+				final int item = i;
+				futures.add(completion.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws DocServiceException {
+						contents[item] = fetchDocument(docIds[item]);
+						return item;
+					}
+				}));
+			}
+			int item = -1;
+			try {
+				for (int done = 0; done < items.length; done++) {
+					Future<Integer> future = completion.take();
+					item = futures.indexOf(future);
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DocServiceException("Interrupted while fetching document group.");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				logger.error("Could not fetch document '" + docIds[item] + "' from Document-Service. URL was: " + sourceURLs[item], cause);
+				if (cause instanceof DocServiceException) {
+					throw (DocServiceException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw (Error) cause;
+			} finally {
+				for (Future<Integer> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		
+		List<GroupDocument> documents = new ArrayList<GroupDocument>(items.length);
+		for (int i = 0; i < items.length; i++) {
+			documents.add(new GroupDocument(docIds[i], sourceURLs[i], contents[i]));
+		}
+		return documents;
+	}
+
+	/**
+	 * @return the raw JSON the document service holds for docId
+	 */
+	protected String retrieveDocument(String docId) throws DocServiceException {
+		DocumentObject document = docClient.fetch(docId);
+		return document.getDataAsString();
+	}
+
+	/**
+	 * @return the extracted text the document service holds for docId
+	 */
+	protected JSONObject retrieveExtractedText(String docId) throws DocServiceException {
+		return docClient.fetchExtractedText(docId);
+	}
+
+	private void acquireDocService() throws DocServiceException {
+		if (io == null) {
+			return;
+		}
+		try {
+			io.getDocServicePermits().acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocServiceException("Interrupted while waiting to fetch document.");
+		}
+	}
+
+	private void releaseDocService() {
+		if (io != null) {
+			io.getDocServicePermits().release();
+		}
+	}
+
+	/**
+	 * Stops the group fetch threads.
+	 */
+	public void close() {
+		if (groupExecutor != null) {
+			groupExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the cache, or null if fetches aren't cached
+	 */
+	public DocumentCache getCache() {
+		return cache;
+	}
+}
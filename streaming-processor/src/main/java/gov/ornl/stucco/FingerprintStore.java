@@ -0,0 +1,170 @@
+package gov.ornl.stucco;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the messages that were processed, by a 64 bit fingerprint of their routing key and
+ * body, so that a redelivered or re-sent message can be acked without fetching, extracting and
+ * aligning it again.  For messages that carry a document id, the body is the id.
+ *
+ * The fingerprints are kept in a memory-mapped file, so they survive restarts without being read
+ * onto the heap.  The file is a hash table of buckets of BUCKET_SLOTS slots, each slot holding a
+ * fingerprint and a stamp: the time it was recorded, with a sequence number in the low bits to
+ * order fingerprints recorded in the same ms.  When a bucket is full the oldest fingerprint in it
+ * is overwritten, so the store holds roughly the most recent capacity fingerprints.
+ */
+public class FingerprintStore {
+	private static final Logger logger = LoggerFactory.getLogger(FingerprintStore.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int FILE_MAGIC = 0x46505331;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 16;
+	//8 slots of 16 bytes, two cache lines
+	private static final int BUCKET_SLOTS = 8;
+	private static final int BUCKET_SIZE = BUCKET_SLOTS * SLOT_SIZE;
+	private static final int MAX_BUCKETS = 1 << 23;
+	private static final int SEQUENCE_BITS = 20;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final MappedByteBuffer buffer;
+	private final int bucketMask;
+	private final long ttl;
+	private long sequence;
+
+	/**
+	 * @param path file to map, created if needed
+	 * @param capacity roughly how many fingerprints to keep, rounded up to a power of two
+	 * @param ttl how long (ms) a fingerprint counts, 0 or less for as long as it is kept
+	 */
+	public FingerprintStore(String path, int capacity, long ttl) throws IOException {
+		int buckets = Math.min(MAX_BUCKETS, Integer.highestOneBit(Math.max(1, (capacity - 1) / BUCKET_SLOTS)) << 1);
+		this.bucketMask = buckets - 1;
+		this.ttl = ttl;
+		long size = HEADER_SIZE + (long) buckets * BUCKET_SIZE;
+		File file = new File(path);
+		boolean existed = file.exists() && (file.length() == size);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (!existed) {
+				//a new file, or one made with another capacity that can't be reused
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+			//the mapping stays valid after the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+		if (existed && ((buffer.getInt(0) != FILE_MAGIC) || (buffer.getInt(4) != buckets))) {
+			logger.warn(path + " does not hold message fingerprints, starting with none.");
+			clear();
+			existed = false;
+		}
+		buffer.putInt(0, FILE_MAGIC);
+		buffer.putInt(4, buckets);
+		if (existed) {
+			logger.info("Reusing message fingerprints in " + path);
+		}
+	}
+
+	/**
+	 * Creates the store described by the fingerprintPath, fingerprintCapacity and fingerprintTTL
+	 * settings.
+	 * @return the store, or null if fingerprintPath is empty
+	 */
+	public static FingerprintStore fromConfig(Map<String, Object> configMap) throws IOException {
+		String path = ConfigLoader.getString(configMap, "fingerprintPath", "");
+		if (path.isEmpty()) {
+			return null;
+		}
+		return new FingerprintStore(path, ConfigLoader.getInt(configMap, "fingerprintCapacity", 1 << 20),
+				ConfigLoader.getLong(configMap, "fingerprintTTL", 0));
+	}
+
+	/**
+	 * @return the fingerprint of a message, never 0
+	 */
+	public static long fingerprint(String routingKey, byte[] body) {
+		long hash = FNV_OFFSET;
+		for (byte b : routingKey.getBytes(UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		//separates the routing key from the body
+		hash = (hash ^ 0x100) * FNV_PRIME;
+		for (byte b : body) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		hash = (hash ^ body.length) * FNV_PRIME;
+		//murmur3 finalizer
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (hash == 0) ? 1 : hash;
+	}
+
+	/**
+	 * @return true if the fingerprint was recorded, within the ttl
+	 */
+	public synchronized boolean contains(long fingerprint) {
+		int bucket = bucketOffset(fingerprint);
+		for (int slot = bucket; slot < bucket + BUCKET_SIZE; slot += SLOT_SIZE) {
+			if (buffer.getLong(slot) == fingerprint) {
+				return (ttl <= 0) || ((buffer.getLong(slot + 8) >>> SEQUENCE_BITS) + ttl > System.currentTimeMillis());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a fingerprint, overwriting the oldest one in its bucket if the bucket is full.
+	 */
+	public synchronized void add(long fingerprint) {
+		int bucket = bucketOffset(fingerprint);
+		int oldest = bucket;
+		for (int slot = bucket; slot < bucket + BUCKET_SIZE; slot += SLOT_SIZE) {
+			long stored = buffer.getLong(slot);
+			if ((stored == fingerprint) || (stored == 0)) {
+				oldest = slot;
+				break;
+			}
+			if (buffer.getLong(slot + 8) < buffer.getLong(oldest + 8)) {
+				oldest = slot;
+			}
+		}
+		buffer.putLong(oldest, fingerprint);
+		sequence = (sequence + 1) & ((1 << SEQUENCE_BITS) - 1);
+		buffer.putLong(oldest + 8, (System.currentTimeMillis() << SEQUENCE_BITS) | sequence);
+	}
+
+	/**
+	 * Writes the fingerprints out to the file.  Without this they are still written by the OS,
+	 * but may be lost if the machine, rather than the process, goes down.
+	 */
+	public synchronized void close() {
+		buffer.force();
+	}
+
+	private int bucketOffset(long fingerprint) {
+		return HEADER_SIZE + (((int) fingerprint) & bucketMask) * BUCKET_SIZE;
+	}
+
+	private void clear() {
+		for (int i = 0; i < buffer.capacity(); i += 8) {
+			buffer.putLong(i, 0);
+		}
+	}
+}
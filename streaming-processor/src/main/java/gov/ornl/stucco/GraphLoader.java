@@ -0,0 +1,15 @@
+package gov.ornl.stucco;
+
+import org.json.JSONObject;
+
+/**
+ * Where AlignmentBatcher loads subgraphs.  In the transformers this is the knowledge graph, via
+ * Align; other implementations let the batching be used, or measured, without a database.
+ */
+public interface GraphLoader {
+
+	/**
+	 * Merges a subgraph into the graph, throwing a RuntimeException if it could not be loaded.
+	 */
+	public void load(JSONObject graph);
+}
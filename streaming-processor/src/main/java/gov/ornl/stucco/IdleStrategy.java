@@ -0,0 +1,39 @@
+package gov.ornl.stucco;
+
+/**
+ * Decides how long a transformer waits when its queue is empty.
+ *
+ * In push mode the wait blocks on the consumer's delivery buffer, so a new message is picked up
+ * as soon as the broker delivers it.  In pull mode there is nothing to block on, so the wait
+ * starts at minWait and doubles each time the queue is found empty again, up to maxWait.
+ */
+public class IdleStrategy {
+	private final long minWait;
+	private final long maxWait;
+	private long currentWait;
+
+	public IdleStrategy(long minWait, long maxWait) {
+		this.minWait = Math.max(1, minWait);
+		this.maxWait = Math.max(this.minWait, maxWait);
+		this.currentWait = this.minWait;
+	}
+
+	/**
+	 * Call whenever a message was received, so the next idle period starts from the shortest wait.
+	 */
+	public void reset() {
+		currentWait = minWait;
+	}
+
+	/**
+	 * Waits until a message is likely to be available.
+	 */
+	public void idle(RabbitMQConsumer consumer) throws InterruptedException {
+		if (consumer.isPushMode()) {
+			consumer.awaitMessage(maxWait);
+			return;
+		}
+		Thread.sleep(currentWait);
+		currentWait = Math.min(maxWait, currentWait * 2);
+	}
+}
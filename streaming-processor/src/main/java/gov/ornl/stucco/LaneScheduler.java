@@ -0,0 +1,472 @@
+package gov.ornl.stucco;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a fixed number of worker threads, sorted by routing key into weighted lanes, so
+ * that a backlog of bulk feeds can't hold up latency-sensitive sources.  Each lane has a
+ * concurrency limit, a limit on queued tasks, and optionally a rate limit applied to each routing
+ * key in it.  When more than one lane has a task ready and room to run it, the free thread goes to
+ * the lanes in proportion to their weights (smooth weighted round-robin).
+ *
+ * Like OrderedExecutor, tasks that share a partition key run one at a time in submission order, as
+ * long as they are in the same lane (always the case when partitioning by routing key).  Within a
+ * lane, the partition keys with ready tasks take turns.  Tasks submitted with a null key are only
+ * grouped by routing key for their turns, and may run concurrently.
+ *
+ * Routing keys that match none of the lanes' topic patterns go to a default lane with weight 1
+ * and no limits beyond the thread count.
+ *
+ * submit() never blocks, so a backed up lane can't stop the caller from taking messages for the
+ * others.  Once a lane has maxPending tasks queued, further tasks for it are held in a shared
+ * overflow of the scheduler's default maxPending tasks, and once that is full too they are refused,
+ * for the caller to requeue.
+ */
+public class LaneScheduler {
+	private static final Logger logger = LoggerFactory.getLogger(LaneScheduler.class);
+
+	public static final String DEFAULT_LANE = "default";
+
+	private final List<Lane> lanes = new ArrayList<Lane>();
+	private final Map<String, Lane> laneByRoutingKey = new HashMap<String, Lane>();
+	private final Thread[] workers;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	//signalled whenever a task is queued or finishes, or the scheduler shuts down
+	private final Condition changed = lock.newCondition();
+	private int queued;
+	//tasks queued beyond their lane's maxPending, at most maxHeld
+	private int held;
+	private final int maxHeld;
+	private boolean shutdown;
+
+	/**
+	 * @param lanes lane definitions, in the order their patterns are matched
+	 * @param maxPending default limit of queued tasks per lane, and of tasks held for full lanes
+	 */
+	public LaneScheduler(final String name, int threads, int maxPending, List<LaneConfig> lanes) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive, was " + threads);
+		}
+		this.maxHeld = Math.max(1, maxPending);
+		for (LaneConfig config : lanes) {
+			this.lanes.add(new Lane(config, threads, maxPending));
+		}
+		this.lanes.add(new Lane(new LaneConfig(DEFAULT_LANE, new String[0], 1, 0, 0, 0), threads, maxPending));
+
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, name + "-" + i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * @return a scheduler for the lanes listed in a config section, or null if there are none.
+	 * Each lane is a map with name, routingKeys (topic patterns), and optionally weight,
+	 * concurrency, rateLimit (tasks per second per routing key) and maxPending.
+	 */
+	@SuppressWarnings("unchecked")
+	public static LaneScheduler fromConfig(String name, int threads, int maxPending, List<Map<String, Object>> laneConfigs) {
+		if ((laneConfigs == null) || laneConfigs.isEmpty()) {
+			return null;
+		}
+		List<LaneConfig> lanes = new ArrayList<LaneConfig>();
+		for (Map<String, Object> laneConfig : laneConfigs) {
+			List<String> routingKeys = (List<String>) laneConfig.get("routingKeys");
+			if ((routingKeys == null) || routingKeys.isEmpty()) {
+				throw new IllegalArgumentException("Lane " + laneConfig.get("name") + " has no routingKeys.");
+			}
+			lanes.add(new LaneConfig(ConfigLoader.getString(laneConfig, "name", "lane-" + lanes.size()),
+					routingKeys.toArray(new String[routingKeys.size()]),
+					ConfigLoader.getInt(laneConfig, "weight", 1),
+					ConfigLoader.getInt(laneConfig, "concurrency", 0),
+					Double.parseDouble(ConfigLoader.getString(laneConfig, "rateLimit", "0")),
+					ConfigLoader.getInt(laneConfig, "maxPending", 0)));
+		}
+		return new LaneScheduler(name, threads, maxPending, lanes);
+	}
+
+	/**
+	 * Queues the task in the lane for its routing key, behind any earlier tasks with the same
+	 * partition key, or if the lane is full, in the overflow.
+	 * @return false if the lane and the overflow are full, in which case the task was not queued
+	 */
+	public boolean submit(String routingKey, String partitionKey, Runnable task) {
+		lock.lock();
+		try {
+			if (shutdown) {
+				throw new IllegalStateException("LaneScheduler has been shut down.");
+			}
+			Lane lane = getLane(routingKey);
+			Task queuedTask = new Task(routingKey, partitionKey, task);
+			if (lane.queued >= lane.maxPending) {
+				if (held >= maxHeld) {
+					return false;
+				}
+				queuedTask.held = true;
+				held++;
+			}
+			lane.add(queuedTask);
+			queued++;
+			changed.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued ones to finish.
+	 * @return true if all tasks finished before the timeout
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		lock.lock();
+		try {
+			shutdown = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread worker : workers) {
+			long remaining = deadline - System.nanoTime();
+			worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			if (worker.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of tasks queued or running in each lane, for logging
+	 */
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			StringBuilder str = new StringBuilder();
+			for (Lane lane : lanes) {
+				if (str.length() > 0) {
+					str.append(", ");
+				}
+				str.append(lane.name).append(": ").append(lane.queued).append(" queued, ").append(lane.running).append(" running");
+			}
+			str.append(", ").append(held).append(" held");
+			return str.toString();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Lane getLane(String routingKey) {
+		Lane lane = laneByRoutingKey.get(routingKey);
+		if (lane == null) {
+			lane = lanes.get(lanes.size() - 1);
+			for (Lane candidate : lanes) {
+				if (candidate.matches(routingKey)) {
+					lane = candidate;
+					break;
+				}
+			}
+			laneByRoutingKey.put(routingKey, lane);
+		}
+		return lane;
+	}
+
+	private void work() {
+		while (true) {
+			Task task;
+			lock.lock();
+			try {
+				task = awaitTask();
+				if (task == null) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Lane worker interrupted, " + queued + " task(s) left queued.");
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error in lane task for " + task.routingKey, e);
+			} finally {
+				lock.lock();
+				try {
+					task.lane.finished(task);
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until a lane can run a task, and takes it.
+	 * @return the task, or null once the scheduler is shut down and nothing is left to run
+	 */
+	private Task awaitTask() throws InterruptedException {
+		while (true) {
+			long now = System.nanoTime();
+			//the soonest a rate limited task becomes ready, if no task is ready now
+			long wait = Long.MAX_VALUE;
+			int totalWeight = 0;
+			Lane best = null;
+			for (Lane lane : lanes) {
+				long laneWait = lane.nanosUntilReady(now);
+				if (laneWait == 0) {
+					lane.currentWeight += lane.weight;
+					totalWeight += lane.weight;
+					if ((best == null) || (lane.currentWeight > best.currentWeight)) {
+						best = lane;
+					}
+				} else {
+					wait = Math.min(wait, laneWait);
+				}
+			}
+			if (best != null) {
+				best.currentWeight -= totalWeight;
+				Task task = best.take(now);
+				queued--;
+				if (task.held) {
+					held--;
+				}
+				return task;
+			}
+			if (shutdown && (queued == 0)) {
+				return null;
+			}
+			if (wait == Long.MAX_VALUE) {
+				changed.await();
+			} else {
+				changed.awaitNanos(wait);
+			}
+		}
+	}
+
+	/**
+	 * How a lane is configured.
+	 */
+	public static class LaneConfig {
+		public final String name;
+		public final String[] routingKeys;
+		public final int weight;
+		public final int concurrency;
+		public final double rateLimit;
+		public final int maxPending;
+
+		/**
+		 * @param routingKeys topic patterns of the routing keys in the lane
+		 * @param weight share of the free threads when several lanes are waiting
+		 * @param concurrency maximum tasks running at once, 0 for the thread count
+		 * @param rateLimit maximum tasks started per second for each routing key, 0 for no limit
+		 * @param maxPending maximum tasks queued in the lane, 0 for the scheduler's default
+		 */
+		public LaneConfig(String name, String[] routingKeys, int weight, int concurrency, double rateLimit, int maxPending) {
+			if (weight <= 0) {
+				throw new IllegalArgumentException("weight of lane " + name + " must be positive, was " + weight);
+			}
+			this.name = name;
+			this.routingKeys = routingKeys;
+			this.weight = weight;
+			this.concurrency = concurrency;
+			this.rateLimit = rateLimit;
+			this.maxPending = maxPending;
+		}
+	}
+
+	private static class Task {
+		final String routingKey;
+		final String partitionKey;
+		final Runnable runnable;
+		Lane lane;
+		//queued in the overflow, beyond its lane's maxPending
+		boolean held;
+
+		Task(String routingKey, String partitionKey, Runnable runnable) {
+			this.routingKey = routingKey;
+			this.partitionKey = partitionKey;
+			this.runnable = runnable;
+		}
+
+		String getTurnKey() {
+			return (partitionKey != null) ? partitionKey : routingKey;
+		}
+	}
+
+	/**
+	 * Tokens refill at rate per second, up to a burst of one second's worth (at least one).
+	 */
+	private static class TokenBucket {
+		private final double ratePerNano;
+		private final double burst;
+		private double tokens;
+		private long lastRefill;
+
+		TokenBucket(double rate, long now) {
+			this.ratePerNano = rate / TimeUnit.SECONDS.toNanos(1);
+			this.burst = Math.max(1, rate);
+			this.tokens = burst;
+			this.lastRefill = now;
+		}
+
+		long nanosUntilAvailable(long now) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+			lastRefill = now;
+			if (tokens >= 1) {
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerNano));
+		}
+
+		void take() {
+			tokens -= 1;
+		}
+	}
+
+	/**
+	 * Only accessed with the scheduler's lock held.
+	 */
+	private static class Lane {
+		final String name;
+		final String[] routingKeys;
+		final int weight;
+		final int concurrency;
+		final double rateLimit;
+		final int maxPending;
+		int currentWeight;
+		int queued;
+		int running;
+		//tasks waiting for their turn, by partition key, in the order the keys take turns
+		private final LinkedHashMap<String, ArrayDeque<Task>> turns = new LinkedHashMap<String, ArrayDeque<Task>>();
+		//partition keys with a task running
+		private final Set<String> busy = new HashSet<String>();
+		private final Map<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+
+		Lane(LaneConfig config, int threads, int defaultMaxPending) {
+			this.name = config.name;
+			this.routingKeys = config.routingKeys;
+			this.weight = config.weight;
+			this.concurrency = (config.concurrency > 0) ? Math.min(config.concurrency, threads) : threads;
+			this.rateLimit = config.rateLimit;
+			this.maxPending = Math.max(1, (config.maxPending > 0) ? config.maxPending : defaultMaxPending);
+		}
+
+		boolean matches(String routingKey) {
+			for (String key : routingKeys) {
+				if (RabbitMQConsumer.topicMatches(key, routingKey)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void add(Task task) {
+			task.lane = this;
+			ArrayDeque<Task> tasks = turns.get(task.getTurnKey());
+			if (tasks == null) {
+				tasks = new ArrayDeque<Task>();
+				turns.put(task.getTurnKey(), tasks);
+			}
+			tasks.add(task);
+			queued++;
+		}
+
+		/**
+		 * @return 0 if a task can be started now, how long until one can if only rate limits are
+		 * in the way, or Long.MAX_VALUE if the lane has to wait for something else
+		 */
+		long nanosUntilReady(long now) {
+			if ((queued == 0) || (running >= concurrency)) {
+				return Long.MAX_VALUE;
+			}
+			long wait = Long.MAX_VALUE;
+			for (ArrayDeque<Task> tasks : turns.values()) {
+				Task task = tasks.peek();
+				if ((task.partitionKey != null) && busy.contains(task.partitionKey)) {
+					continue;
+				}
+				wait = Math.min(wait, nanosUntilAllowed(task.routingKey, now));
+				if (wait == 0) {
+					break;
+				}
+			}
+			return wait;
+		}
+
+		/**
+		 * Takes the first ready task, and sends its partition key to the back of the turns.
+		 */
+		Task take(long now) {
+			Iterator<Map.Entry<String, ArrayDeque<Task>>> entries = turns.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, ArrayDeque<Task>> entry = entries.next();
+				Task task = entry.getValue().peek();
+				if ((task.partitionKey != null) && busy.contains(task.partitionKey)) {
+					continue;
+				}
+				if (nanosUntilAllowed(task.routingKey, now) > 0) {
+					continue;
+				}
+				entries.remove();
+				entry.getValue().poll();
+				if (!entry.getValue().isEmpty()) {
+					turns.put(entry.getKey(), entry.getValue());
+				}
+				if (rateLimit > 0) {
+					buckets.get(task.routingKey).take();
+				}
+				if (task.partitionKey != null) {
+					busy.add(task.partitionKey);
+				}
+				queued--;
+				running++;
+				return task;
+			}
+			throw new IllegalStateException("Lane " + name + " has no ready task.");
+		}
+
+		void finished(Task task) {
+			running--;
+			if (task.partitionKey != null) {
+				busy.remove(task.partitionKey);
+			}
+		}
+
+		private long nanosUntilAllowed(String routingKey, long now) {
+			if (rateLimit <= 0) {
+				return 0;
+			}
+			TokenBucket bucket = buckets.get(routingKey);
+			if (bucket == null) {
+				bucket = new TokenBucket(rateLimit, now);
+				buckets.put(routingKey, bucket);
+			}
+			return bucket.nanosUntilAvailable(now);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package gov.ornl.stucco;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits line oriented text into chunks of whole lines, so a large document can be handed to an
+ * extractor a piece at a time.  Each chunk holds at least one line, and otherwise stays under
+ * chunkSize characters.
+ */
+public class LineChunker implements ContentChunker {
+	private final BufferedReader reader;
+	private final int chunkSize;
+	private final StringBuilder chunk;
+	private String pendingLine;
+	private boolean finished;
+
+	/**
+	 * @param reader the text to split, closed once all of it has been read
+	 * @param chunkSize maximum characters in a chunk, unless a single line is longer
+	 */
+	public LineChunker(Reader reader, int chunkSize) {
+		this.reader = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.chunk = new StringBuilder(Math.min(this.chunkSize, 1 << 20) + 256);
+	}
+
+	/**
+	 * @return the next chunk, each line ended with '\n', or null once all the text has been read
+	 */
+	@Override
+	public String nextChunk() throws IOException {
+		if (finished) {
+			return null;
+		}
+		chunk.setLength(0);
+		String line = (pendingLine != null) ? pendingLine : reader.readLine();
+		pendingLine = null;
+		while (line != null) {
+			if ((chunk.length() > 0) && (chunk.length() + line.length() >= chunkSize)) {
+				pendingLine = line;
+				break;
+			}
+			chunk.append(line).append('\n');
+			line = reader.readLine();
+		}
+		if (chunk.length() == 0) {
+			finished = true;
+			reader.close();
+			return null;
+		}
+		return chunk.toString();
+	}
+}
@@ -0,0 +1,116 @@
+package gov.ornl.stucco;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A fixed size store of documents kept in a memory-mapped file, used as the second tier of
+ * DocumentCache.  The file is written as a ring: when a document doesn't fit in the space left at
+ * the end, writing wraps around to the start and overwrites the oldest documents.
+ *
+ * Only the file contents live outside the heap, the index is rebuilt empty on every start, so the
+ * file is just scratch space.
+ */
+public class MappedDocumentStore {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static class Slot {
+		final int offset;
+		final int length;
+
+		Slot(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final Map<String, Slot> index = new HashMap<String, Slot>();
+	//key of the document stored at each offset, used to find what a write overwrites
+	private final TreeMap<Integer, String> offsets = new TreeMap<Integer, String>();
+	private int writePosition;
+
+	/**
+	 * @param path file to map, created if needed
+	 * @param size bytes of the file to use, at most Integer.MAX_VALUE
+	 */
+	public MappedDocumentStore(String path, long size) throws IOException {
+		this.capacity = (int) Math.min(size, Integer.MAX_VALUE);
+		RandomAccessFile file = new RandomAccessFile(new File(path), "rw");
+		try {
+			//the mapping stays valid after the file is closed
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} finally {
+			file.close();
+		}
+	}
+
+	public synchronized String get(String key) {
+		Slot slot = index.get(key);
+		if (slot == null) {
+			return null;
+		}
+		byte[] bytes = new byte[slot.length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(slot.offset);
+		view.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	public synchronized void put(String key, String value) {
+		byte[] bytes = value.getBytes(UTF_8);
+		if ((bytes.length == 0) || (bytes.length > capacity)) {
+			return;
+		}
+		remove(key);
+		if (writePosition + bytes.length > capacity) {
+			writePosition = 0;
+		}
+		evictRange(writePosition, writePosition + bytes.length);
+		ByteBuffer view = buffer.duplicate();
+		view.position(writePosition);
+		view.put(bytes);
+		index.put(key, new Slot(writePosition, bytes.length));
+		offsets.put(writePosition, key);
+		writePosition += bytes.length;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	private void remove(String key) {
+		Slot slot = index.remove(key);
+		if (slot != null) {
+			offsets.remove(slot.offset);
+		}
+	}
+
+	/**
+	 * Drops the documents that overlap [start, end).
+	 */
+	private void evictRange(int start, int end) {
+		Map.Entry<Integer, String> before = offsets.lowerEntry(start);
+		if (before != null) {
+			Slot slot = index.get(before.getValue());
+			if (slot.offset + slot.length > start) {
+				remove(before.getValue());
+			}
+		}
+		Iterator<String> overlapping = offsets.subMap(start, end).values().iterator();
+		while (overlapping.hasNext()) {
+			index.remove(overlapping.next());
+			overlapping.remove();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package gov.ornl.stucco;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a fixed number of instances of a model that takes a long time to load, such as a CoreNLP
+ * pipeline, in the background, and lends them to the threads that use them.  A thread borrows an
+ * instance with take() and gives it back with release(), so an instance is only used by one thread
+ * at a time and models that are not thread-safe can still be shared by more threads than there are
+ * instances.  take() returns as soon as any instance is loaded, so work can start before the rest
+ * are.
+ *
+ * The model files can be pre-warmed: they are memory-mapped and read a page at a time before the
+ * instances are loaded, so that the loads, and those of other processes on the same host, read
+ * them from the page cache instead of the disk.
+ */
+public class ModelPool<T> {
+	private static final Logger logger = LoggerFactory.getLogger(ModelPool.class);
+	private static final int PAGE_SIZE = 4096;
+	//how often take() checks whether every load failed
+	private static final long TAKE_POLL_TIME = 1000;
+
+	private final String name;
+	private final int instances;
+	private final BlockingQueue<T> available = new LinkedBlockingQueue<T>();
+	private final AtomicInteger loaded = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final ExecutorService loaders;
+	private volatile RuntimeException loadFailure;
+	private List<String> prewarmPaths;
+
+	/**
+	 * Starts loading the instances.
+	 * @param name names the model in the log and the loading threads
+	 * @param loader loads one instance
+	 * @param instances how many instances to load
+	 * @param prewarmPaths model files, or directories of them, to read into the page cache first
+	 */
+	public ModelPool(String name, final Callable<T> loader, int instances, List<String> prewarmPaths) {
+		this.name = name;
+		this.instances = Math.max(1, instances);
+		final AtomicInteger threadCount = new AtomicInteger();
+		final String threadName = name;
+		this.loaders = Executors.newFixedThreadPool(this.instances, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadName + "-loader-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.prewarmPaths = prewarmPaths;
+		final long start = System.nanoTime();
+		for (int i = 0; i < this.instances; i++) {
+			loaders.execute(new Runnable() {
+				@Override
+				public void run() {
+					prewarmOnce();
+					load(loader, start);
+				}
+			});
+		}
+		loaders.shutdown();
+	}
+
+	/**
+	 * Borrows an instance, waiting for one to be loaded or released if there is none.
+	 * @throws IllegalStateException if no instance could be loaded
+	 */
+	public T take() throws InterruptedException {
+		T model = available.poll();
+		while (model == null) {
+			if ((loaded.get() == 0) && (failed.get() == instances)) {
+				throw new IllegalStateException("Could not load any " + name + " models.", loadFailure);
+			}
+			model = available.poll(TAKE_POLL_TIME, TimeUnit.MILLISECONDS);
+		}
+		return model;
+	}
+
+	/**
+	 * Gives back an instance borrowed with take().
+	 */
+	public void release(T model) {
+		available.add(model);
+	}
+
+	/**
+	 * @return true once every instance has been loaded, or failed to
+	 */
+	public boolean isLoaded() {
+		return loaded.get() + failed.get() == instances;
+	}
+
+	/**
+	 * Stops any loads that have not started yet.
+	 */
+	public void close() {
+		loaders.shutdownNow();
+	}
+
+	/**
+	 * The first loading thread pre-warms the model files while the others wait for it.
+	 */
+	private synchronized void prewarmOnce() {
+		if ((prewarmPaths != null) && !prewarmPaths.isEmpty()) {
+			prewarm(prewarmPaths);
+		}
+		prewarmPaths = null;
+	}
+
+	private void load(Callable<T> loader, long start) {
+		T model;
+		try {
+			model = loader.call();
+		} catch (Exception e) {
+			logger.error("Could not load " + name + " models.", e);
+			loadFailure = (e instanceof RuntimeException) ? (RuntimeException) e : new RuntimeException(e);
+			failed.incrementAndGet();
+			return;
+		}
+		int count = loaded.incrementAndGet();
+		available.add(model);
+		logger.info("Loaded " + name + " models " + count + " of " + instances + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	/**
+	 * Reads the files into the page cache through a memory mapping, touching one byte a page, so
+	 * that nothing is copied onto the heap.
+	 */
+	private static void prewarm(List<String> paths) {
+		long start = System.nanoTime();
+		List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			listFiles(new File(path), files);
+		}
+		long bytes = 0;
+		for (File file : files) {
+			try {
+				bytes += prewarm(file);
+			} catch (IOException e) {
+				logger.warn("Could not pre-warm " + file, e);
+			}
+		}
+		logger.info("Pre-warmed " + files.size() + " model files, " + bytes + " bytes, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	private static long prewarm(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			//a mapping is at most 2 GB
+			for (long offset = 0; offset < size; offset += Integer.MAX_VALUE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Integer.MAX_VALUE, size - offset));
+				int sum = 0;
+				for (int i = 0; i < buffer.limit(); i += PAGE_SIZE) {
+					sum += buffer.get(i);
+				}
+				if (sum == 1) {
+					//keeps the reads from being optimized away
+					logger.trace("Pre-warmed " + file);
+				}
+			}
+			return size;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void listFiles(File file, List<File> files) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					listFiles(child, files);
+				}
+			}
+		} else if (file.isFile()) {
+			files.add(file);
+		} else {
+			logger.warn("No model file at " + file);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package gov.ornl.stucco;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed number of worker threads, while keeping tasks that share a partition key
+ * in submission order.  Each key is hashed onto a single-threaded lane, so two tasks with the same
+ * key never run concurrently.  Tasks submitted with a null key are spread round-robin over the lanes.
+ *
+ * At most maxPending tasks can be queued or running at once; submit() blocks beyond that.
+ */
+public class OrderedExecutor {
+	private final ExecutorService[] lanes;
+	private final Semaphore pending;
+	private final AtomicInteger nextLane = new AtomicInteger();
+
+	public OrderedExecutor(final String name, int threads, int maxPending) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive, was " + threads);
+		}
+		lanes = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			final String threadName = name + "-" + i;
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, threadName);
+				}
+			});
+		}
+		pending = new Semaphore(Math.max(threads, maxPending));
+	}
+
+	public int getThreadCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Queues the task behind any earlier tasks with the same key.
+	 * @throws InterruptedException if interrupted while waiting for room in the queue
+	 */
+	public void submit(String key, final Runnable task) throws InterruptedException {
+		int lane;
+		if (key == null) {
+			lane = (nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+		} else {
+			lane = (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+		}
+		pending.acquire();
+		try {
+			lanes[lane].execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pending.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued ones to finish.
+	 * @return true if all tasks finished before the timeout
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ExecutorService lane : lanes) {
+			long remaining = deadline - System.nanoTime();
+			if (!lane.awaitTermination(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
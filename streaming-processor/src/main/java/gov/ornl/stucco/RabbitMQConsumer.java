@@ -1,19 +1,46 @@
 package gov.ornl.stucco;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
 
+/**
+ * Consumes messages over one connection, on one or more channels.  By default a single channel
+ * consumes the queue given to the constructor.  setChannels() spreads that queue over several
+ * channels, each with its own prefetch window and delivery handler, and addShardQueue() adds queues
+ * bound to their own routing keys, so that slow sources don't hold up the prefetch window of the
+ * others.  Messages whose routing key matches a shard queue's bindings are only routed to that
+ * queue, see bindQueues().
+ *
+ * With more than one channel, the delivery tags handed out are not the broker's: the index of the
+ * channel is kept in the low bits, so that acks and nacks go back to the channel the message came
+ * from.  Callers only pass them back to messageProcessed() or retryMessage(), so this is invisible
+ * to them.
+ */
 public class RabbitMQConsumer {
 	private static final Logger logger = LoggerFactory.getLogger(RabbitMQConsumer.class);
 
 	private static final String EXCHANGE_TYPE = "topic";
+	//with shard queues, see bindQueues()
+	private static final String SHARDING_SUFFIX = ".sharding";
+	private static final String UNSHARDED_SUFFIX = ".unsharded";
 
 	private String exchangeName;
 	private String queueName;
@@ -22,8 +49,23 @@ public class RabbitMQConsumer {
 	private String username;
 	private String password;
 	private String[] bindingKeys;
-	private Channel channel;
-	
+	private Connection connection;
+
+	//the main queue first, then any shard queues, see addShardQueue()
+	private final List<QueueSpec> queueSpecs = new ArrayList<QueueSpec>();
+	private final List<ConsumerChannel> channels = new ArrayList<ConsumerChannel>();
+	//low bits of a delivery tag that hold the channel index, 0 with a single channel
+	private int channelBits;
+	//round robin position for basicGet in pull mode
+	private int nextChannel;
+
+	//only used in push mode, see startConsuming()
+	private BlockingQueue<GetResponse> deliveryBuffer;
+	//taken from the buffer by awaitMessage(), returned by the next getMessage()
+	private GetResponse awaitedResponse;
+	private int prefetchCount;
+	private int ackBatchSize = 1;
+
 	public RabbitMQConsumer(String exchangeName, String queueName, String host, int port, String username, String password, String[] bindingKeys) {
 		this.exchangeName = exchangeName;
 		this.queueName = queueName;
@@ -32,8 +74,46 @@ public class RabbitMQConsumer {
 		this.username = username;
 		this.password = password;
 		this.bindingKeys = bindingKeys;
+		queueSpecs.add(new QueueSpec(queueName, bindingKeys, 1, 0));
+	}
+
+	/**
+	 * Consumes the main queue on this many channels.  Call before openQueue().
+	 */
+	public void setChannels(int channelCount) {
+		queueSpecs.set(0, new QueueSpec(queueName, bindingKeys, channelCount, 0));
+	}
+
+	/**
+	 * Adds a queue bound to its own routing keys, consumed alongside the main queue.  Call before
+	 * openQueue().
+	 * @param channelCount channels consuming the queue
+	 * @param prefetchCount prefetch window of each of those channels in push mode, 0 for the one
+	 * passed to startConsuming()
+	 */
+	public void addShardQueue(String shardQueueName, String[] shardBindingKeys, int channelCount, int prefetchCount) {
+		queueSpecs.add(new QueueSpec(shardQueueName, shardBindingKeys, channelCount, prefetchCount));
+	}
+
+	/**
+	 * Adds the shard queues listed in a config section, each a map with queue, bindings, and
+	 * optionally channels and prefetchCount.
+	 */
+	@SuppressWarnings("unchecked")
+	public void addShardQueues(List<Map<String, Object>> shardConfigs) {
+		if (shardConfigs == null) {
+			return;
+		}
+		for (Map<String, Object> shardConfig : shardConfigs) {
+			List<String> bindings = (List<String>) shardConfig.get("bindings");
+			if ((bindings == null) || bindings.isEmpty()) {
+				throw new IllegalArgumentException("Shard queue " + shardConfig.get("queue") + " has no bindings.");
+			}
+			addShardQueue(String.valueOf(shardConfig.get("queue")), bindings.toArray(new String[bindings.size()]),
+					ConfigLoader.getInt(shardConfig, "channels", 1), ConfigLoader.getInt(shardConfig, "prefetchCount", 0));
+		}
 	}
-	
+
 	public void openQueue() throws IOException {
 		//setup a connection
 		ConnectionFactory factory = new ConnectionFactory();
@@ -45,38 +125,276 @@ public class RabbitMQConsumer {
 		if (password != null) {
 			factory.setPassword(password);
 		}
-		
+
 		try {
-			Connection connection = factory.newConnection();
-			//create a durable exchange on the channel
-			channel = connection.createChannel();
-			channel.exchangeDeclare(exchangeName, EXCHANGE_TYPE, true);
-			//create a queue to consume messages with specific routing keys
-			channel.queueDeclare(queueName, true, false, false, null);
-			for (String key : bindingKeys) {
-				channel.queueBind(queueName, exchangeName, key);
+			connection = factory.newConnection();
+			for (QueueSpec spec : queueSpecs) {
+				//create a durable exchange on the channel
+				Channel channel = connection.createChannel();
+				channel.exchangeDeclare(exchangeName, EXCHANGE_TYPE, true);
+				//create a queue to consume messages with specific routing keys
+				channel.queueDeclare(spec.queueName, true, false, false, null);
+				channels.add(new ConsumerChannel(channels.size(), spec, channel));
+				for (int i = 1; i < spec.channelCount; i++) {
+					channels.add(new ConsumerChannel(channels.size(), spec, connection.createChannel()));
+				}
 			}
+			bindQueues(channels.get(0).channel);
 		} catch (IOException e) {
 			logger.error("Error creating spout connection.");
 			throw e;
 		}
+		while ((1 << channelBits) < channels.size()) {
+			channelBits++;
+		}
+		if (channels.size() > 1) {
+			logger.info("Consuming " + queueSpecs.size() + " queue(s) on " + channels.size() + " channels.");
+		}
 	}
-	
-	public GetResponse getMessage() throws IOException {
-		GetResponse response = null;
+
+	/**
+	 * Binds the queues to their routing keys.  Without shard queues, the main queue is bound to the
+	 * exchange directly.  With them, every binding key goes to the exchange.sharding exchange, which
+	 * routes the shard keys to the shard queues.  What none of them match is unroutable there, so it
+	 * goes to its alternate exchange, exchange.unsharded, where the main queue is bound.  That way
+	 * each message lands on exactly one of the queues.
+	 */
+	private void bindQueues(Channel channel) throws IOException {
+		QueueSpec mainSpec = queueSpecs.get(0);
+		String shardingExchange = exchangeName + SHARDING_SUFFIX;
+		String unshardedExchange = exchangeName + UNSHARDED_SUFFIX;
+		if (queueSpecs.size() == 1) {
+			for (String key : mainSpec.bindingKeys) {
+				channel.queueBind(mainSpec.queueName, exchangeName, key);
+			}
+			unbindUnsharded(mainSpec, unshardedExchange);
+			return;
+		}
+		channel.exchangeDeclare(unshardedExchange, EXCHANGE_TYPE, true);
+		Map<String, Object> arguments = new HashMap<String, Object>();
+		arguments.put("alternate-exchange", unshardedExchange);
+		channel.exchangeDeclare(shardingExchange, EXCHANGE_TYPE, true, false, arguments);
+		for (QueueSpec spec : queueSpecs) {
+			for (String key : spec.bindingKeys) {
+				//a direct binding, from a run without shard queues, would deliver a second copy
+				channel.queueUnbind(spec.queueName, exchangeName, key);
+				channel.exchangeBind(shardingExchange, exchangeName, key);
+				channel.queueBind(spec.queueName, (spec == mainSpec) ? unshardedExchange : shardingExchange, key);
+			}
+		}
+	}
+
+	/**
+	 * Removes the main queue's bindings from a run with shard queues, if there was one, so that it
+	 * doesn't get a second copy of its messages through exchange.unsharded.
+	 */
+	private void unbindUnsharded(QueueSpec mainSpec, String unshardedExchange) throws IOException {
+		//unbinding from an exchange that doesn't exist closes the channel, so it gets its own
+		Channel channel = connection.createChannel();
 		try {
-			response = channel.basicGet(queueName, false);
+			for (String key : mainSpec.bindingKeys) {
+				channel.queueUnbind(mainSpec.queueName, unshardedExchange, key);
+			}
 		} catch (IOException e) {
-			logger.error("Error getting message from queue '" + queueName + "'.");
-			throw e;
+			//never ran with shard queues
+		} finally {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Switches this consumer from polling (basicGet) to push-based consumption.  The broker
+	 * will deliver up to prefetchCount unacknowledged messages per channel, which are held in an
+	 * internal buffer until they are taken by getMessage().
+	 * @param prefetchCount maximum number of unacknowledged messages delivered to each channel,
+	 * unless its queue sets its own
+	 */
+	public void startConsuming(int prefetchCount) throws IOException {
+		if (prefetchCount <= 0) {
+			throw new IllegalArgumentException("prefetchCount must be positive, was " + prefetchCount);
+		}
+		this.prefetchCount = prefetchCount;
+		int bufferSize = 0;
+		for (ConsumerChannel consumerChannel : channels) {
+			int channelPrefetch = consumerChannel.getPrefetchCount();
+			if ((consumerChannel.ackBatcher != null) && (ackBatchSize > channelPrefetch / 2)) {
+				//the broker stops delivering before a full batch can finish, so acks will wait for the timeout
+				logger.warn("ackBatchSize " + ackBatchSize + " is large for prefetchCount " + channelPrefetch + ", acks will mostly be sent on timeout.");
+			}
+			bufferSize += channelPrefetch;
+		}
+		//the broker never has more than prefetchCount unacked messages out per channel, however many
+		//consumers pausing and resuming have registered on it, so the buffer can never fill up
+		deliveryBuffer = new ArrayBlockingQueue<GetResponse>(bufferSize);
+		for (ConsumerChannel consumerChannel : channels) {
+			String channelQueue = consumerChannel.spec.queueName;
+			try {
+				synchronized (consumerChannel.lock) {
+					//global, so the limit is shared by every consumer on the channel rather than each getting its own
+					consumerChannel.channel.basicQos(consumerChannel.getPrefetchCount(), true);
+					consumerChannel.consumerTag = consumerChannel.channel.basicConsume(channelQueue, false, new BufferingConsumer(consumerChannel));
+				}
+			} catch (IOException e) {
+				logger.error("Error starting consumer on queue '" + channelQueue + "'.");
+				throw e;
+			}
+			logger.info("Consuming from queue '" + channelQueue + "' with prefetch count " + consumerChannel.getPrefetchCount());
+		}
+	}
+
+	/**
+	 * In push mode, cancels the consumers so the broker stops delivering, see resumeConsuming().
+	 * Messages already delivered stay in the buffer and can still be taken and acked.
+	 */
+	public void pauseConsuming() throws IOException {
+		if (!isPushMode()) {
+			return;
+		}
+		for (ConsumerChannel consumerChannel : channels) {
+			if (consumerChannel.consumerTag == null) {
+				continue;
+			}
+			try {
+				synchronized (consumerChannel.lock) {
+					consumerChannel.channel.basicCancel(consumerChannel.consumerTag);
+				}
+			} catch (IOException e) {
+				logger.error("Error pausing consumer on queue '" + consumerChannel.spec.queueName + "'.");
+				throw e;
+			}
+			consumerChannel.consumerTag = null;
+		}
+	}
+
+	/**
+	 * In push mode, starts the consumers cancelled by pauseConsuming() again.  They share the
+	 * channel's prefetch window with the messages delivered before the pause, so no more are
+	 * delivered until enough of those are acked.
+	 */
+	public void resumeConsuming() throws IOException {
+		if (!isPushMode()) {
+			return;
+		}
+		for (ConsumerChannel consumerChannel : channels) {
+			if (consumerChannel.consumerTag != null) {
+				continue;
+			}
+			try {
+				synchronized (consumerChannel.lock) {
+					consumerChannel.consumerTag = consumerChannel.channel.basicConsume(consumerChannel.spec.queueName, false, new BufferingConsumer(consumerChannel));
+				}
+			} catch (IOException e) {
+				logger.error("Error resuming consumer on queue '" + consumerChannel.spec.queueName + "'.");
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Acks finished messages cumulatively instead of one at a time.  Call after openQueue() and
+	 * before startConsuming(), so that every delivery is tracked by the batcher.  Each channel
+	 * batches its own acks, since a cumulative ack only covers the channel it is sent on.
+	 * @param batchSize number of finished messages that triggers an ack
+	 * @param maxDelay maximum time (ms) a finished message waits for its ack
+	 */
+	public void enableAckBatching(int batchSize, long maxDelay) {
+		if (batchSize <= 1) {
+			return;
+		}
+		ackBatchSize = batchSize;
+		for (ConsumerChannel consumerChannel : channels) {
+			consumerChannel.ackBatcher = new AckBatcher(consumerChannel.channel, consumerChannel.lock, batchSize, maxDelay);
+		}
+		logger.info("Batching acks on queue '" + queueName + "' every " + batchSize + " messages or " + maxDelay + " ms");
+	}
+
+	public boolean isPushMode() {
+		return (deliveryBuffer != null);
+	}
+
+	/**
+	 * @return the next message, or null if the queue (or the push buffer) is currently empty
+	 */
+	public GetResponse getMessage() throws IOException {
+		GetResponse response = null;
+		if (isPushMode()) {
+			if (awaitedResponse != null) {
+				response = awaitedResponse;
+				awaitedResponse = null;
+				return response;
+			}
+			response = deliveryBuffer.poll();
+			if (response == null) {
+				checkConsumerAlive();
+			}
+			return response;
 		}
-		
-		return response;
+		return getFromChannels();
 	}
-	
+
+	/**
+	 * Takes a single message.  In push mode this can be used while paused to let one message
+	 * through without resuming the consumers and their whole prefetch window: it is taken from the
+	 * messages delivered before the pause, or if there are none, with basicGet.
+	 * @return the next message, or null if the queues are currently empty
+	 */
+	public GetResponse probeMessage() throws IOException {
+		if (isPushMode()) {
+			GetResponse response = getMessage();
+			if (response != null) {
+				return response;
+			}
+		}
+		return getFromChannels();
+	}
+
+	private GetResponse getFromChannels() throws IOException {
+		//take from each channel in turn, so one busy queue can't starve the others
+		for (int tried = 0; tried < channels.size(); tried++) {
+			ConsumerChannel consumerChannel = channels.get(nextChannel);
+			nextChannel = (nextChannel + 1) % channels.size();
+			GetResponse response = consumerChannel.get();
+			if (response != null) {
+				return response;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * In push mode, blocks until a message has been delivered or the timeout expires.  The message
+	 * is not removed, the next call to getMessage() returns it.  In pull mode this returns immediately.
+	 * @return true if a message is available
+	 */
+	public boolean awaitMessage(long timeoutMillis) throws InterruptedException {
+		if (!isPushMode()) {
+			return false;
+		}
+		if (awaitedResponse == null) {
+			awaitedResponse = deliveryBuffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return (awaitedResponse != null);
+	}
+
+	private void checkConsumerAlive() throws IOException {
+		for (ConsumerChannel consumerChannel : channels) {
+			String channelQueue = consumerChannel.spec.queueName;
+			if (consumerChannel.shutdownSignal != null) {
+				logger.error("Consumer on queue '" + channelQueue + "' was shut down.");
+				throw new IOException("Consumer on queue '" + channelQueue + "' was shut down.", consumerChannel.shutdownSignal);
+			}
+			if (consumerChannel.cancelled) {
+				logger.error("Consumer on queue '" + channelQueue + "' was cancelled by the broker.");
+				throw new IOException("Consumer on queue '" + channelQueue + "' was cancelled by the broker.");
+			}
+		}
+	}
+
 	public void messageProcessed(long deliveryTag) throws IOException {
 		try {
-			channel.basicAck(deliveryTag, false);
+			getChannel(deliveryTag).ack(getBrokerTag(deliveryTag));
 		} catch (IOException e) {
 			logger.error("Error sending ack to data publisher.");
 			throw e;
@@ -85,21 +403,200 @@ public class RabbitMQConsumer {
 
 	public void retryMessage(long deliveryTag) throws IOException {
 		try {
-			channel.basicNack(deliveryTag, false, true);
+			getChannel(deliveryTag).nack(getBrokerTag(deliveryTag));
 		} catch (IOException e) {
 			logger.error("Error sending nack to data publisher.");
 			throw e;
 		}
 	}
-	
+
 	public void close() throws IOException {
-		if ((channel != null) && (channel.getConnection() != null) && (channel.getConnection().isOpen())) {
+		for (ConsumerChannel consumerChannel : channels) {
+			if (consumerChannel.ackBatcher != null) {
+				try {
+					consumerChannel.ackBatcher.close();
+				} catch (IOException e) {
+					logger.error("Error sending final batched ack to data publisher.");
+				}
+			}
+		}
+		if ((connection != null) && (connection.isOpen())) {
 			try {
-				channel.getConnection().close();
+				connection.close();
 			} catch (IOException e) {
 				logger.error("Error closing connection.");
 				throw e;
 			}
 		}
 	}
+
+	private ConsumerChannel getChannel(long deliveryTag) {
+		return channels.get((int) (deliveryTag & ((1L << channelBits) - 1)));
+	}
+
+	private long getBrokerTag(long deliveryTag) {
+		return deliveryTag >>> channelBits;
+	}
+
+	/**
+	 * Matches a routing key against a topic binding key, where * stands for one word and # for zero
+	 * or more words.
+	 */
+	static boolean topicMatches(String bindingKey, String routingKey) {
+		return topicMatches(bindingKey.split("\\."), 0, routingKey.split("\\."), 0);
+	}
+
+	private static boolean topicMatches(String[] binding, int b, String[] words, int w) {
+		if (b == binding.length) {
+			return (w == words.length);
+		}
+		if ("#".equals(binding[b])) {
+			for (int skip = w; skip <= words.length; skip++) {
+				if (topicMatches(binding, b + 1, words, skip)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if ((w == words.length) || (!"*".equals(binding[b]) && !binding[b].equals(words[w]))) {
+			return false;
+		}
+		return topicMatches(binding, b + 1, words, w + 1);
+	}
+
+	private static class QueueSpec {
+		final String queueName;
+		final String[] bindingKeys;
+		final int channelCount;
+		final int prefetchCount;
+
+		QueueSpec(String queueName, String[] bindingKeys, int channelCount, int prefetchCount) {
+			if (channelCount <= 0) {
+				throw new IllegalArgumentException("channels must be positive, was " + channelCount);
+			}
+			this.queueName = queueName;
+			this.bindingKeys = bindingKeys;
+			this.channelCount = channelCount;
+			this.prefetchCount = prefetchCount;
+		}
+	}
+
+	/**
+	 * One channel consuming one queue, with the state that can't be shared between channels.
+	 */
+	private class ConsumerChannel {
+		final int index;
+		final QueueSpec spec;
+		final Channel channel;
+		//held while sending on the channel, since acks come from the worker, BlockingIO and batcher
+		//timer threads, and a Channel is not safe for concurrent use
+		final Object lock = new Object();
+		//null when every message is acked individually, see enableAckBatching()
+		AckBatcher ackBatcher;
+		volatile ShutdownSignalException shutdownSignal;
+		volatile boolean cancelled;
+		//null in pull mode, and while paused in push mode
+		String consumerTag;
+
+		ConsumerChannel(int index, QueueSpec spec, Channel channel) {
+			this.index = index;
+			this.spec = spec;
+			this.channel = channel;
+		}
+
+		int getPrefetchCount() {
+			return (spec.prefetchCount > 0) ? spec.prefetchCount : prefetchCount;
+		}
+
+		/**
+		 * @return the next message on this channel with basicGet, or null if there is none
+		 */
+		GetResponse get() throws IOException {
+			GetResponse response;
+			try {
+				synchronized (lock) {
+					response = channel.basicGet(spec.queueName, false);
+				}
+			} catch (IOException e) {
+				logger.error("Error getting message from queue '" + spec.queueName + "'.");
+				throw e;
+			}
+			if (response == null) {
+				return null;
+			}
+			if (ackBatcher != null) {
+				ackBatcher.delivered(response.getEnvelope().getDeliveryTag());
+			}
+			return toConsumerResponse(response.getEnvelope(), response.getProps(), response.getBody(), response.getMessageCount());
+		}
+
+		/**
+		 * @return the message, with a delivery tag that also identifies this channel
+		 */
+		GetResponse toConsumerResponse(Envelope envelope, AMQP.BasicProperties properties, byte[] body, int messageCount) {
+			if (channelBits == 0) {
+				return new GetResponse(envelope, properties, body, messageCount);
+			}
+			long deliveryTag = (envelope.getDeliveryTag() << channelBits) | index;
+			Envelope consumerEnvelope = new Envelope(deliveryTag, envelope.isRedeliver(), envelope.getExchange(), envelope.getRoutingKey());
+			return new GetResponse(consumerEnvelope, properties, body, messageCount);
+		}
+
+		void ack(long brokerTag) throws IOException {
+			if (ackBatcher != null) {
+				ackBatcher.complete(brokerTag);
+			} else {
+				synchronized (lock) {
+					channel.basicAck(brokerTag, false);
+				}
+			}
+		}
+
+		void nack(long brokerTag) throws IOException {
+			if (ackBatcher != null) {
+				ackBatcher.nack(brokerTag, true);
+			} else {
+				synchronized (lock) {
+					channel.basicNack(brokerTag, false, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands deliveries from the connection's dispatch thread over to the delivery buffer.
+	 */
+	private class BufferingConsumer extends DefaultConsumer {
+		private final ConsumerChannel consumerChannel;
+
+		public BufferingConsumer(ConsumerChannel consumerChannel) {
+			super(consumerChannel.channel);
+			this.consumerChannel = consumerChannel;
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+			if (consumerChannel.ackBatcher != null) {
+				//register before buffering, so a cumulative ack can never cover a buffered message
+				consumerChannel.ackBatcher.delivered(envelope.getDeliveryTag());
+			}
+			try {
+				deliveryBuffer.put(consumerChannel.toConsumerResponse(envelope, properties, body, 0));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.warn("Interrupted while buffering deliveryTag=[" + envelope.getDeliveryTag() + "], requeueing it.");
+				consumerChannel.nack(envelope.getDeliveryTag());
+			}
+		}
+
+		@Override
+		public void handleCancel(String consumerTag) throws IOException {
+			consumerChannel.cancelled = true;
+		}
+
+		@Override
+		public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+			consumerChannel.shutdownSignal = sig;
+		}
+	}
 }
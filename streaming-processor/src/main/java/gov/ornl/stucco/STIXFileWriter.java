@@ -0,0 +1,238 @@
+package gov.ornl.stucco;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.stix.stix_1.STIXPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends STIX output to a file that stays open for the life of the transformer.
+ *
+ * Writes are collected in memory and written out once flushSize bytes are buffered, or every
+ * flushInterval ms.  The file is locked only while a buffer is written, so other processes
+ * appending to the same file still never interleave with a write.  Messages are acked only once
+ * their output has been written, see whenWritten(), so a killed process loses no acked output.
+ *
+ * With rolling enabled, the current file is renamed to path.yyyyMMdd-HHmmss-SSS once it reaches
+ * rollSize bytes or is rollInterval ms old, and a new file is started at path.
+ */
+public class STIXFileWriter implements STIXOutput {
+	private static final Logger logger = LoggerFactory.getLogger(STIXFileWriter.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	//initial size of the buffer a package is serialized into
+	static final int PACKAGE_BUFFER_SIZE = 8192;
+
+	public enum SyncPolicy {
+		/** leave it to the OS */
+		NONE,
+		/** fsync after every buffer is written */
+		FLUSH,
+		/** fsync only when a file is rolled or closed */
+		ROLL
+	}
+
+	private final File file;
+	private final int flushSize;
+	private final SyncPolicy syncPolicy;
+	private final long rollSize;
+	private final long rollInterval;
+
+	private final ByteArrayOutputStream buffer;
+	//waiting for the buffer to be written
+	private List<Listener> listeners = new ArrayList<Listener>();
+	private FileChannel channel;
+	private long fileOpenedTime;
+
+	private final ScheduledExecutorService timer;
+	private IOException timerFailure;
+
+	/**
+	 * @param path the file to append to
+	 * @param flushSize buffered bytes that trigger a write
+	 * @param flushInterval maximum time (ms) output stays buffered, 0 to only flush on size
+	 * @param syncPolicy when to fsync
+	 * @param rollSize file size (bytes) that starts a new file, 0 to disable
+	 * @param rollInterval file age (ms) that starts a new file, 0 to disable
+	 */
+	public STIXFileWriter(String path, int flushSize, long flushInterval, SyncPolicy syncPolicy, long rollSize, long rollInterval) throws IOException {
+		this.file = new File(path);
+		this.flushSize = Math.max(0, flushSize);
+		this.syncPolicy = syncPolicy;
+		this.rollSize = rollSize;
+		this.rollInterval = rollInterval;
+		this.buffer = new ByteArrayOutputStream(Math.max(1024, this.flushSize));
+		openFile();
+
+		if (flushInterval > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "stix-file-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					timedFlush();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		} else {
+			timer = null;
+		}
+	}
+
+	@Override
+	public void write(String routingKey, String packageId, long timestamp, String content) throws IOException {
+		write(content);
+	}
+
+	@Override
+	public void write(String routingKey, String packageId, long timestamp, STIXPackage stixPackage) throws IOException {
+		//serialize outside the lock, so other threads can keep appending meanwhile
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(PACKAGE_BUFFER_SIZE);
+		STIXSerializer.write(stixPackage, bytes, true);
+		append(bytes);
+	}
+
+	public synchronized void write(String content) throws IOException {
+		rethrowTimerFailure();
+		byte[] bytes = content.getBytes(UTF_8);
+		buffer.write(bytes, 0, bytes.length);
+		if (buffer.size() >= flushSize) {
+			flush();
+		}
+	}
+
+	private synchronized void append(ByteArrayOutputStream bytes) throws IOException {
+		rethrowTimerFailure();
+		bytes.writeTo(buffer);
+		if (buffer.size() >= flushSize) {
+			flush();
+		}
+	}
+
+	@Override
+	public synchronized void whenWritten(Listener listener) {
+		if (buffer.size() == 0) {
+			listener.written();
+		} else {
+			listeners.add(listener);
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		List<Listener> flushed = listeners;
+		listeners = new ArrayList<Listener>();
+		if (buffer.size() > 0) {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+			buffer.reset();
+			try {
+				FileLock lock = channel.lock();
+				try {
+					while (bytes.hasRemaining()) {
+						channel.write(bytes);
+					}
+				} finally {
+					lock.release();
+				}
+				if (syncPolicy == SyncPolicy.FLUSH) {
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				for (Listener listener : flushed) {
+					listener.failed(e);
+				}
+				throw e;
+			}
+		}
+		for (Listener listener : flushed) {
+			listener.written();
+		}
+		if (shouldRoll()) {
+			roll();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		try {
+			flush();
+			if (syncPolicy != SyncPolicy.NONE) {
+				channel.force(false);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private boolean shouldRoll() throws IOException {
+		if ((rollSize > 0) && (channel.size() >= rollSize)) {
+			return true;
+		}
+		if ((rollInterval > 0) && (channel.size() > 0) && (System.currentTimeMillis() - fileOpenedTime >= rollInterval)) {
+			return true;
+		}
+		return false;
+	}
+
+	private void roll() throws IOException {
+		if (syncPolicy != SyncPolicy.NONE) {
+			channel.force(false);
+		}
+		channel.close();
+		String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+		File rolled = new File(file.getPath() + "." + suffix);
+		if (!file.renameTo(rolled)) {
+			logger.error("Could not roll " + file + " to " + rolled + ", continuing to append to it.");
+		} else {
+			logger.info("Rolled STIX output to " + rolled);
+		}
+		openFile();
+	}
+
+	@SuppressWarnings("resource")
+	private void openFile() throws IOException {
+		//append mode, so writes land at the end even if another process appended in the meantime
+		channel = new FileOutputStream(file, true).getChannel();
+		fileOpenedTime = System.currentTimeMillis();
+	}
+
+	private synchronized void timedFlush() {
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.error("Could not write stix xml file: ", e);
+			timerFailure = e;
+		}
+	}
+
+	private void rethrowTimerFailure() throws IOException {
+		if (timerFailure != null) {
+			IOException e = timerFailure;
+			timerFailure = null;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package gov.ornl.stucco;
+
+import gov.ornl.stucco.preprocessors.PreprocessSTIX;
+import gov.ornl.stucco.preprocessors.PreprocessSTIX.Vertex;
+
+import java.util.Map;
+
+import org.mitre.stix.stix_1.STIXPackage;
+
+/**
+ * Turns STIX into the vertices GraphConstructor expects.  PreprocessSTIX, from the graph-alignment
+ * artifact, only normalizes XML text, so a STIXPackage is still marshalled to text and parsed back;
+ * the marshalling goes through STIXSerializer, so it reuses a shared JAXBContext instead of creating
+ * one per package the way STIXPackage.toXMLString() does.
+ *
+ * Like PreprocessSTIX, a STIXNormalizer is meant to be used by one thread at a time.
+ */
+public class STIXNormalizer {
+	private final PreprocessSTIX preprocessSTIX;
+
+	public STIXNormalizer() {
+		this(new PreprocessSTIX());
+	}
+
+	public STIXNormalizer(PreprocessSTIX preprocessSTIX) {
+		this.preprocessSTIX = preprocessSTIX;
+	}
+
+	public Map<String, Vertex> normalize(STIXPackage stixPackage) {
+		return preprocessSTIX.normalizeSTIX(STIXSerializer.toXMLString(stixPackage, false));
+	}
+
+	public Map<String, Vertex> normalize(String stixXML) {
+		return preprocessSTIX.normalizeSTIX(stixXML);
+	}
+}
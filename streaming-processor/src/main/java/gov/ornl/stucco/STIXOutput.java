@@ -0,0 +1,42 @@
+package gov.ornl.stucco;
+
+import java.io.IOException;
+
+import org.mitre.stix.stix_1.STIXPackage;
+
+/**
+ * Destination for the STIX content produced from each message.
+ */
+public interface STIXOutput {
+
+	/**
+	 * Told when output that may still have been buffered is written out to the file.
+	 */
+	public interface Listener {
+		public void written();
+
+		public void failed(IOException e);
+	}
+
+	/**
+	 * @param routingKey routing key of the message the content came from
+	 * @param packageId id of the STIX package, or null if the content is not a single package
+	 * @param timestamp message timestamp (ms)
+	 * @param content the STIX content
+	 */
+	public void write(String routingKey, String packageId, long timestamp, String content) throws IOException;
+
+	/**
+	 * Writes the package as pretty printed XML, serialized with STIXSerializer straight into the
+	 * output rather than through a String.
+	 */
+	public void write(String routingKey, String packageId, long timestamp, STIXPackage stixPackage) throws IOException;
+
+	/**
+	 * Tells listener once everything written so far is written out to the file, right away if
+	 * nothing is buffered.  A message should only be acked after that.
+	 */
+	public void whenWritten(Listener listener);
+
+	public void close() throws IOException;
+}
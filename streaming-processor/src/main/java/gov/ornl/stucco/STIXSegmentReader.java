@@ -0,0 +1,92 @@
+package gov.ornl.stucco;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads individual packages back out of segments written by STIXSegmentWriter, using the index
+ * to seek straight to them.
+ */
+public class STIXSegmentReader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static class IndexEntry {
+		public final String packageId;
+		public final String routingKey;
+		public final long timestamp;
+		public final long offset;
+		public final int length;
+
+		public IndexEntry(String packageId, String routingKey, long timestamp, long offset, int length) {
+			this.packageId = packageId;
+			this.routingKey = routingKey;
+			this.timestamp = timestamp;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	public static List<IndexEntry> readIndex(String segmentPath) throws IOException {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segmentPath + STIXSegmentWriter.INDEX_SUFFIX), UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 5) {
+					//a partial line from an interrupted write
+					continue;
+				}
+				String packageId = "-".equals(fields[0]) ? null : fields[0];
+				entries.add(new IndexEntry(packageId, fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), Integer.parseInt(fields[4])));
+			}
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the content of the package with the given id, or null if it is not in the segment
+	 */
+	public static String findPackage(String segmentPath, String packageId) throws IOException {
+		for (IndexEntry entry : readIndex(segmentPath)) {
+			if (packageId.equals(entry.packageId)) {
+				return readPackage(segmentPath, entry);
+			}
+		}
+		return null;
+	}
+
+	public static String readPackage(String segmentPath, IndexEntry entry) throws IOException {
+		byte[] bytes = new byte[entry.length];
+		RandomAccessFile file = new RandomAccessFile(segmentPath, "r");
+		try {
+			file.seek(entry.offset);
+			file.readFully(bytes);
+		} finally {
+			file.close();
+		}
+		if (segmentPath.endsWith(STIXSegmentWriter.GZIP_SUFFIX)) {
+			GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes));
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] chunk = new byte[8192];
+			int read;
+			while ((read = gzip.read(chunk)) > 0) {
+				out.write(chunk, 0, read);
+			}
+			gzip.close();
+			bytes = out.toByteArray();
+		}
+		return new String(bytes, UTF_8);
+	}
+}
@@ -0,0 +1,268 @@
+package gov.ornl.stucco;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.mitre.stix.stix_1.STIXPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes STIX output as a series of numbered segment files, path.000001, path.000002, ...
+ * (with a .gz suffix when compressed), each with a sidecar index file (segment name + .idx).
+ *
+ * Each index line is tab separated: packageId, routingKey, timestamp, offset, length.  The offset
+ * and length are the byte range of that package in the segment, so it can be read back with a seek;
+ * see STIXSegmentReader.  When compressed, every package is its own gzip member, so a range can be
+ * decompressed on its own, while the whole segment is still a valid gzip file.
+ *
+ * A new segment is started once the current one reaches rollSize bytes or is rollInterval ms old.
+ * Only one process should write to a given path.
+ */
+public class STIXSegmentWriter implements STIXOutput {
+	private static final Logger logger = LoggerFactory.getLogger(STIXSegmentWriter.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	public static final String INDEX_SUFFIX = ".idx";
+	public static final String GZIP_SUFFIX = ".gz";
+
+	private final String basePath;
+	private final boolean compress;
+	private final int flushSize;
+	private final STIXFileWriter.SyncPolicy syncPolicy;
+	private final long rollSize;
+	private final long rollInterval;
+
+	private final ByteArrayOutputStream buffer;
+	private final StringBuilder indexBuffer = new StringBuilder();
+	//waiting for the buffer to be written
+	private List<Listener> listeners = new ArrayList<Listener>();
+	private int segmentNumber;
+	private FileChannel segment;
+	private FileChannel index;
+	//bytes in the segment file, including what is still buffered
+	private long segmentSize;
+	private long segmentOpenedTime;
+
+	private final ScheduledExecutorService timer;
+	private IOException timerFailure;
+
+	/**
+	 * @param path base name of the segment files
+	 * @param compress gzip each package
+	 * @param flushSize buffered bytes that trigger a write
+	 * @param flushInterval maximum time (ms) output stays buffered, 0 to only flush on size
+	 * @param syncPolicy when to fsync
+	 * @param rollSize segment size (bytes) that starts a new segment, 0 to disable
+	 * @param rollInterval segment age (ms) that starts a new segment, 0 to disable
+	 */
+	public STIXSegmentWriter(String path, boolean compress, int flushSize, long flushInterval, STIXFileWriter.SyncPolicy syncPolicy, long rollSize, long rollInterval) throws IOException {
+		this.basePath = path;
+		this.compress = compress;
+		this.flushSize = Math.max(0, flushSize);
+		this.syncPolicy = syncPolicy;
+		this.rollSize = rollSize;
+		this.rollInterval = rollInterval;
+		this.buffer = new ByteArrayOutputStream(Math.max(1024, this.flushSize));
+		//never append to a segment from an earlier run, its index may be incomplete
+		segmentNumber = findLastSegmentNumber();
+		openNextSegment();
+
+		if (flushInterval > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "stix-segment-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					timedFlush();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		} else {
+			timer = null;
+		}
+	}
+
+	@Override
+	public void write(String routingKey, String packageId, long timestamp, String content) throws IOException {
+		byte[] bytes = content.getBytes(UTF_8);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(compress ? (bytes.length / 4 + 64) : bytes.length);
+		OutputStream out = compress ? new GZIPOutputStream(encoded) : encoded;
+		out.write(bytes);
+		out.close();
+		append(routingKey, packageId, timestamp, encoded);
+	}
+
+	@Override
+	public void write(String routingKey, String packageId, long timestamp, STIXPackage stixPackage) throws IOException {
+		//serialize (and compress) outside the lock, so other threads can keep appending meanwhile
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(STIXFileWriter.PACKAGE_BUFFER_SIZE);
+		OutputStream out = compress ? new GZIPOutputStream(encoded) : encoded;
+		STIXSerializer.write(stixPackage, out, true);
+		out.close();
+		append(routingKey, packageId, timestamp, encoded);
+	}
+
+	private synchronized void append(String routingKey, String packageId, long timestamp, ByteArrayOutputStream bytes) throws IOException {
+		if (timerFailure != null) {
+			IOException e = timerFailure;
+			timerFailure = null;
+			throw e;
+		}
+		indexBuffer.append((packageId == null) ? "-" : clean(packageId)).append('\t')
+			.append(clean(routingKey)).append('\t')
+			.append(timestamp).append('\t')
+			.append(segmentSize).append('\t')
+			.append(bytes.size()).append('\n');
+		bytes.writeTo(buffer);
+		segmentSize += bytes.size();
+		if (buffer.size() >= flushSize) {
+			flush();
+		}
+	}
+
+	@Override
+	public synchronized void whenWritten(Listener listener) {
+		if (buffer.size() == 0) {
+			listener.written();
+		} else {
+			listeners.add(listener);
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		List<Listener> flushed = listeners;
+		listeners = new ArrayList<Listener>();
+		if (buffer.size() > 0) {
+			try {
+				//segment first, so the index never points past the end of a segment
+				writeFully(segment, ByteBuffer.wrap(buffer.toByteArray()));
+				buffer.reset();
+				writeFully(index, ByteBuffer.wrap(indexBuffer.toString().getBytes(UTF_8)));
+				indexBuffer.setLength(0);
+				if (syncPolicy == STIXFileWriter.SyncPolicy.FLUSH) {
+					segment.force(false);
+					index.force(false);
+				}
+			} catch (IOException e) {
+				for (Listener listener : flushed) {
+					listener.failed(e);
+				}
+				throw e;
+			}
+		}
+		for (Listener listener : flushed) {
+			listener.written();
+		}
+		if (((rollSize > 0) && (segmentSize >= rollSize)) ||
+				((rollInterval > 0) && (segmentSize > 0) && (System.currentTimeMillis() - segmentOpenedTime >= rollInterval))) {
+			closeSegment();
+			openNextSegment();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		try {
+			flush();
+		} finally {
+			closeSegment();
+		}
+		if (segmentSize == 0) {
+			//don't leave an empty segment behind
+			String segmentPath = getSegmentPath(basePath, segmentNumber, compress);
+			new File(segmentPath).delete();
+			new File(segmentPath + INDEX_SUFFIX).delete();
+		}
+	}
+
+	public static String getSegmentPath(String basePath, int segmentNumber, boolean compress) {
+		return basePath + String.format(".%06d", segmentNumber) + (compress ? GZIP_SUFFIX : "");
+	}
+
+	private void openNextSegment() throws IOException {
+		segmentNumber++;
+		String segmentPath = getSegmentPath(basePath, segmentNumber, compress);
+		segment = new FileOutputStream(segmentPath, true).getChannel();
+		index = new FileOutputStream(segmentPath + INDEX_SUFFIX, true).getChannel();
+		segmentSize = segment.size();
+		segmentOpenedTime = System.currentTimeMillis();
+		logger.info("Writing STIX output to segment " + segmentPath);
+	}
+
+	private void closeSegment() throws IOException {
+		try {
+			if (syncPolicy != STIXFileWriter.SyncPolicy.NONE) {
+				segment.force(false);
+				index.force(false);
+			}
+		} finally {
+			segment.close();
+			index.close();
+		}
+	}
+
+	private int findLastSegmentNumber() {
+		File base = new File(basePath).getAbsoluteFile();
+		String prefix = base.getName() + ".";
+		String[] names = base.getParentFile().list();
+		int last = 0;
+		if (names != null) {
+			for (String name : names) {
+				if (!name.startsWith(prefix) || name.endsWith(INDEX_SUFFIX)) {
+					continue;
+				}
+				String number = name.substring(prefix.length());
+				if (number.endsWith(GZIP_SUFFIX)) {
+					number = number.substring(0, number.length() - GZIP_SUFFIX.length());
+				}
+				try {
+					last = Math.max(last, Integer.parseInt(number));
+				} catch (NumberFormatException e) {
+					//not one of ours
+				}
+			}
+		}
+		return last;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	private static String clean(String field) {
+		return field.replace('\t', ' ').replace('\n', ' ');
+	}
+
+	private synchronized void timedFlush() {
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.error("Could not write stix segment: ", e);
+			timerFailure = e;
+		}
+	}
+}
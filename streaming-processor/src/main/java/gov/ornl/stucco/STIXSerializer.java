@@ -0,0 +1,76 @@
+package gov.ornl.stucco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.mitre.stix.stix_1.STIXPackage;
+
+/**
+ * Serializes STIXPackages with one shared JAXBContext and a Marshaller cached per thread, instead of
+ * STIXPackage.toXMLString(), which creates a new context and marshaller on every call.  Packages are
+ * marshalled straight to the Writer or OutputStream, without building a DOM or JDOM tree first.
+ * Unlike toXMLString(), the namespace declarations JAXB puts on the root element are left as they
+ * are, used or not.
+ */
+public final class STIXSerializer {
+
+	private static JAXBContext context;
+
+	private static final ThreadLocal<Marshaller> marshaller = new ThreadLocal<Marshaller>() {
+		@Override
+		protected Marshaller initialValue() {
+			try {
+				Marshaller marshaller = getContext().createMarshaller();
+				marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+				return marshaller;
+			} catch (JAXBException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	private STIXSerializer() {
+	}
+
+	/**
+	 * Writes the package to out as UTF-8 XML.  out is not closed.
+	 */
+	public static void write(STIXPackage stixPackage, OutputStream out, boolean prettyPrint) throws IOException {
+		try {
+			getMarshaller(prettyPrint).marshal(stixPackage.toJAXBElement(), out);
+		} catch (JAXBException e) {
+			throw new IOException("Could not write STIX package.", e);
+		}
+	}
+
+	public static String toXMLString(STIXPackage stixPackage, boolean prettyPrint) {
+		StringWriter writer = new StringWriter();
+		try {
+			getMarshaller(prettyPrint).marshal(stixPackage.toJAXBElement(), writer);
+		} catch (JAXBException e) {
+			throw new RuntimeException(e);
+		}
+		return writer.toString();
+	}
+
+	private static Marshaller getMarshaller(boolean prettyPrint) throws JAXBException {
+		Marshaller threadMarshaller = marshaller.get();
+		threadMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, prettyPrint);
+		return threadMarshaller;
+	}
+
+	/**
+	 * The context is expensive to create and thread-safe, so it is created once and shared.
+	 */
+	private static synchronized JAXBContext getContext() throws JAXBException {
+		if (context == null) {
+			context = JAXBContext.newInstance(STIXPackage.class.getPackage().getName());
+		}
+		return context;
+	}
+}
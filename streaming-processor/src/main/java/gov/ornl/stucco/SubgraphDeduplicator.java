@@ -0,0 +1,520 @@
+package gov.ornl.stucco;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops the vertices and edges of a subgraph that were already loaded into the knowledge graph
+ * within the last ttl ms, so that feeds which republish mostly the same indicators every cycle
+ * don't make alignment re-merge identical vertices.
+ *
+ * Each vertex is identified by a 64 bit hash of its properties, with keys sorted and list values
+ * treated as sets, so the hash doesn't depend on the order GraphConstructor happened to produce.
+ * Vertex ids, and properties like sourceDocument that embed them, are left out because they are
+ * generated anew on every extraction.  An edge is identified by its own properties and the hashes
+ * of its two vertices.  A vertex that was already loaded is still kept if a new edge refers to it.
+ *
+ * Hashes are recorded only once their subgraph has been committed, see listener(), so a subgraph
+ * that fails to load is not dropped when it comes again.  They are kept in an open addressing table
+ * of longs holding at most maxEntries hashes; when it is full, expired hashes are dropped first,
+ * then the oldest.  If a path is given, the table is saved there every saveInterval ms and on
+ * close(), and loaded again on startup.
+ */
+public class SubgraphDeduplicator {
+	private static final Logger logger = LoggerFactory.getLogger(SubgraphDeduplicator.class);
+
+	private static final String VERTICES = "vertices";
+	private static final String EDGES = "edges";
+	private static final String OUT_VERTEX = "outVertID";
+	private static final String IN_VERTEX = "inVertID";
+
+	private static final int FILE_MAGIC = 0x53554744;
+	private static final long VERTEX_SEED = 0xcbf29ce484222325L;
+	private static final long EDGE_SEED = 0x84222325cbf29ce4L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long ttl;
+	private final Set<String> ignoredProperties;
+	private final File file;
+	private final File tempFile;
+	private final ExpiringHashTable table;
+	private final ScheduledExecutorService timer;
+
+	private final AtomicLong loadedElements = new AtomicLong();
+	private final AtomicLong droppedElements = new AtomicLong();
+	private final AtomicLong droppedGraphs = new AtomicLong();
+
+	/**
+	 * The result of filtering one subgraph.
+	 */
+	public static class Result {
+		/** what is left to load, or null if everything was loaded within the ttl */
+		public final JSONObject graph;
+		/** vertices and edges that were dropped */
+		public final int dropped;
+		private final long[] hashes;
+
+		private Result(JSONObject graph, int dropped, long[] hashes) {
+			this.graph = graph;
+			this.dropped = dropped;
+			this.hashes = hashes;
+		}
+	}
+
+	/**
+	 * @param ttl how long (ms) a loaded vertex or edge is dropped from later subgraphs
+	 * @param maxEntries most hashes to remember
+	 * @param ignoredProperties vertex and edge properties left out of the hashes
+	 * @param path where the hashes are saved across restarts, or null
+	 * @param saveInterval how often (ms) the hashes are saved, 0 or less to save only on close()
+	 */
+	public SubgraphDeduplicator(long ttl, int maxEntries, List<String> ignoredProperties, String path, long saveInterval) throws IOException {
+		this.ttl = ttl;
+		this.ignoredProperties = new HashSet<String>(ignoredProperties);
+		this.table = new ExpiringHashTable(maxEntries);
+		if (path == null) {
+			this.file = null;
+			this.tempFile = null;
+		} else {
+			this.file = new File(path);
+			this.tempFile = new File(path + ".tmp");
+			if (file.exists()) {
+				load();
+			}
+		}
+		if ((file != null) && (saveInterval > 0)) {
+			this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "subgraph-dedup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						save();
+					} catch (IOException e) {
+						logger.warn("Could not save subgraph hashes to " + file, e);
+					}
+				}
+			}, saveInterval, saveInterval, TimeUnit.MILLISECONDS);
+		} else {
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Creates the deduplicator described by the dedupTTL, dedupMaxEntries, dedupIgnoreProperties,
+	 * dedupPath and dedupSaveInterval settings.
+	 * @return the deduplicator, or null if dedupTTL is 0
+	 */
+	public static SubgraphDeduplicator fromConfig(Map<String, Object> configMap) throws IOException {
+		long ttl = ConfigLoader.getLong(configMap, "dedupTTL", 0);
+		if (ttl <= 0) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		List<String> ignored = (List<String>) configMap.get("dedupIgnoreProperties");
+		if (ignored == null) {
+			ignored = Arrays.asList("sourceDocument");
+		}
+		String path = ConfigLoader.getString(configMap, "dedupPath", "");
+		return new SubgraphDeduplicator(ttl, ConfigLoader.getInt(configMap, "dedupMaxEntries", 1 << 20), ignored,
+				path.isEmpty() ? null : path, ConfigLoader.getLong(configMap, "dedupSaveInterval", 60000));
+	}
+
+	/**
+	 * Removes the vertices and edges that were loaded within the ttl.  Graphs that are not of the
+	 * form {"vertices": {id: vertex, ...}, "edges": [edge, ...]} are returned as they are.
+	 */
+	public Result filter(JSONObject graph) {
+		JSONObject vertices = graph.optJSONObject(VERTICES);
+		JSONArray edges = graph.optJSONArray(EDGES);
+		if ((vertices == null) && (edges == null)) {
+			return new Result(graph, 0, new long[0]);
+		}
+		Map<String, Long> vertexHashes = new HashMap<String, Long>();
+		if (vertices != null) {
+			for (String id : keys(vertices)) {
+				vertexHashes.put(id, hashObject(VERTEX_SEED, vertices.getJSONObject(id)));
+			}
+		}
+		long[] edgeHashes = new long[(edges == null) ? 0 : edges.length()];
+		for (int i = 0; i < edgeHashes.length; i++) {
+			edgeHashes[i] = hashEdge(edges.getJSONObject(i), vertexHashes);
+		}
+
+		List<Long> newHashes = new ArrayList<Long>();
+		Set<String> referenced = new HashSet<String>();
+		JSONArray keptEdges = new JSONArray();
+		JSONObject keptVertices = new JSONObject();
+		int dropped = 0;
+		long now = System.currentTimeMillis();
+		synchronized (table) {
+			for (int i = 0; i < edgeHashes.length; i++) {
+				if (table.contains(edgeHashes[i], now)) {
+					dropped++;
+					continue;
+				}
+				JSONObject edge = edges.getJSONObject(i);
+				keptEdges.put(edge);
+				newHashes.add(edgeHashes[i]);
+				referenced.add(edge.optString(OUT_VERTEX));
+				referenced.add(edge.optString(IN_VERTEX));
+			}
+			for (Map.Entry<String, Long> vertex : vertexHashes.entrySet()) {
+				if (!table.contains(vertex.getValue(), now)) {
+					newHashes.add(vertex.getValue());
+				} else if (!referenced.contains(vertex.getKey())) {
+					dropped++;
+					continue;
+				}
+				keptVertices.put(vertex.getKey(), vertices.get(vertex.getKey()));
+			}
+		}
+
+		long[] hashes = new long[newHashes.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = newHashes.get(i);
+		}
+		droppedElements.addAndGet(dropped);
+		if (dropped == 0) {
+			return new Result(graph, 0, hashes);
+		}
+		if ((keptVertices.length() == 0) && (keptEdges.length() == 0)) {
+			droppedGraphs.incrementAndGet();
+			return new Result(null, dropped, hashes);
+		}
+		JSONObject kept = new JSONObject();
+		kept.put(VERTICES, keptVertices);
+		kept.put(EDGES, keptEdges);
+		return new Result(kept, dropped, hashes);
+	}
+
+	/**
+	 * @return a listener that records the hashes of the filtered subgraph once it has been
+	 * committed, then tells listener
+	 */
+	public AlignmentBatcher.Listener listener(final Result result, final AlignmentBatcher.Listener listener) {
+		return new AlignmentBatcher.Listener() {
+			@Override
+			public void committed() {
+				loaded(result);
+				listener.committed();
+			}
+
+			@Override
+			public void failed(RuntimeException e) {
+				listener.failed(e);
+			}
+		};
+	}
+
+	/**
+	 * Records the vertices and edges of a filtered subgraph as loaded.
+	 */
+	public void loaded(Result result) {
+		long expires = System.currentTimeMillis() + ttl;
+		synchronized (table) {
+			for (long hash : result.hashes) {
+				table.put(hash, expires);
+			}
+		}
+		loadedElements.addAndGet(result.hashes.length);
+	}
+
+	/**
+	 * Saves the hashes, if there is a path, and stops saving them periodically.
+	 */
+	public void close() throws IOException {
+		if (timer != null) {
+			timer.shutdown();
+		}
+		if (file != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Writes the unexpired hashes to a temporary file, which is renamed over the old one so it is
+	 * never left half written.
+	 */
+	private synchronized void save() throws IOException {
+		long[] hashes;
+		long[] expiries;
+		int count;
+		long now = System.currentTimeMillis();
+		synchronized (table) {
+			hashes = table.hashes.clone();
+			expiries = table.expiries.clone();
+			count = table.size;
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(count);
+			for (int i = 0; i < hashes.length; i++) {
+				if ((hashes[i] != 0) && (expiries[i] > now)) {
+					out.writeLong(hashes[i]);
+					out.writeLong(expiries[i]);
+				}
+			}
+			out.flush();
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		int loaded = 0;
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				logger.warn(file + " does not hold subgraph hashes, starting with none.");
+				return;
+			}
+			//the count is only a hint, the file ends where the hashes do
+			in.readInt();
+			long now = System.currentTimeMillis();
+			while (true) {
+				long hash = in.readLong();
+				long expires = in.readLong();
+				if (expires > now) {
+					table.put(hash, expires);
+					loaded++;
+				}
+			}
+		} catch (EOFException e) {
+			//end of the hashes
+		} finally {
+			in.close();
+		}
+		logger.info("Loaded " + loaded + " unexpired subgraph hashes from " + file);
+	}
+
+	private long hashEdge(JSONObject edge, Map<String, Long> vertexHashes) {
+		long hash = hashObject(EDGE_SEED, edge);
+		hash = hashLong(hash, vertexHash(edge.optString(OUT_VERTEX), vertexHashes));
+		return hashLong(hash, vertexHash(edge.optString(IN_VERTEX), vertexHashes));
+	}
+
+	/**
+	 * @return the hash of a vertex in the subgraph, or of the id itself for a vertex outside it
+	 */
+	private static long vertexHash(String id, Map<String, Long> vertexHashes) {
+		Long hash = vertexHashes.get(id);
+		return (hash != null) ? hash : hashString(EDGE_SEED, id);
+	}
+
+	/**
+	 * Hashes the properties of a vertex or edge in key order, leaving out ignored properties and
+	 * the edge's vertex ids.
+	 */
+	private long hashObject(long hash, JSONObject object) {
+		List<String> keys = keys(object);
+		Collections.sort(keys);
+		for (String key : keys) {
+			if (ignoredProperties.contains(key) || key.equals(OUT_VERTEX) || key.equals(IN_VERTEX)) {
+				continue;
+			}
+			hash = hashString(hash, key);
+			hash = hashLong(hash, hashValue(object.get(key)));
+		}
+		return finish(hash);
+	}
+
+	private long hashValue(Object value) {
+		if (value instanceof JSONObject) {
+			return hashObject(VERTEX_SEED, (JSONObject) value);
+		}
+		if (value instanceof JSONArray) {
+			//list properties are sets to alignment, so element order doesn't count
+			JSONArray array = (JSONArray) value;
+			long[] elements = new long[array.length()];
+			for (int i = 0; i < elements.length; i++) {
+				elements[i] = hashValue(array.get(i));
+			}
+			Arrays.sort(elements);
+			long hash = hashLong(VERTEX_SEED, elements.length);
+			for (long element : elements) {
+				hash = hashLong(hash, element);
+			}
+			return finish(hash);
+		}
+		return finish(hashString(VERTEX_SEED, String.valueOf(value)));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> keys(JSONObject object) {
+		return new ArrayList<String>((Set<String>) object.keySet());
+	}
+
+	/**
+	 * FNV-1a over the chars of s, followed by its length so that consecutive strings can't run
+	 * into each other.
+	 */
+	private static long hashString(long hash, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return hashLong(hash, s.length());
+	}
+
+	private static long hashLong(long hash, long value) {
+		return (hash ^ finish(value)) * FNV_PRIME;
+	}
+
+	/**
+	 * The murmur3 finalizer, spreading the bits of FNV's output over the whole long.
+	 */
+	private static long finish(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		int size;
+		synchronized (table) {
+			size = table.size;
+		}
+		return size + " hashes, " + loadedElements.get() + " vertices and edges recorded, " + droppedElements.get() + " dropped, "
+				+ droppedGraphs.get() + " subgraphs dropped entirely";
+	}
+
+	/**
+	 * Set of hashes with an expiry time each, in two parallel arrays with linear probing.  0 marks
+	 * an empty slot, so a hash of 0 is stored as 1.  Not thread-safe.
+	 */
+	private static class ExpiringHashTable {
+		private final int maxEntries;
+		private final int mask;
+		private long[] hashes;
+		private long[] expiries;
+		private int size;
+
+		ExpiringHashTable(int maxEntries) {
+			this.maxEntries = Math.max(16, maxEntries);
+			//keep the table at most 3/4 full
+			int capacity = Integer.highestOneBit(this.maxEntries + this.maxEntries / 3) << 1;
+			this.mask = capacity - 1;
+			this.hashes = new long[capacity];
+			this.expiries = new long[capacity];
+		}
+
+		boolean contains(long hash, long now) {
+			int slot = find(nonZero(hash));
+			return (hashes[slot] != 0) && (expiries[slot] > now);
+		}
+
+		void put(long hash, long expires) {
+			hash = nonZero(hash);
+			int slot = find(hash);
+			if (hashes[slot] == 0) {
+				if (size >= maxEntries) {
+					evict(System.currentTimeMillis());
+					slot = find(hash);
+				}
+				hashes[slot] = hash;
+				size++;
+			}
+			expiries[slot] = Math.max(expiries[slot], expires);
+		}
+
+		/**
+		 * @return the slot holding hash, or the empty slot where it would go
+		 */
+		private int find(long hash) {
+			int slot = (int) hash & mask;
+			while ((hashes[slot] != 0) && (hashes[slot] != hash)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * Drops expired hashes, then if that frees less than a quarter of the table, the ones that
+		 * expire soonest, so that the work of rebuilding is spread over many puts.  All the hashes
+		 * of a subgraph expire together, so of those that expire at the cutoff, the ones in the
+		 * lowest slots go first, and exactly enough are dropped to get down to the quarter.
+		 */
+		private void evict(long now) {
+			int keep = maxEntries - maxEntries / 4;
+			long[] live = new long[size];
+			int count = 0;
+			for (int i = 0; i < hashes.length; i++) {
+				if ((hashes[i] != 0) && (expiries[i] > now)) {
+					live[count++] = expiries[i];
+				}
+			}
+			long cutoff = now;
+			//how many of the hashes that expire at the cutoff to drop
+			int drop = 0;
+			if (count > keep) {
+				Arrays.sort(live, 0, count);
+				cutoff = live[count - keep - 1];
+				drop = count - keep;
+				for (int i = 0; (i < count) && (live[i] < cutoff); i++) {
+					drop--;
+				}
+			}
+			long[] oldHashes = hashes;
+			long[] oldExpiries = expiries;
+			hashes = new long[oldHashes.length];
+			expiries = new long[oldExpiries.length];
+			size = 0;
+			for (int i = 0; i < oldHashes.length; i++) {
+				if ((oldHashes[i] == 0) || (oldExpiries[i] <= now) || (oldExpiries[i] < cutoff)) {
+					continue;
+				}
+				if ((oldExpiries[i] == cutoff) && (drop > 0)) {
+					drop--;
+					continue;
+				}
+				int slot = find(oldHashes[i]);
+				hashes[slot] = oldHashes[i];
+				expiries[slot] = oldExpiries[i];
+				size++;
+			}
+		}
+
+		private static long nonZero(long hash) {
+			return (hash == 0) ? 1 : hash;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package gov.ornl.stucco;
+
+/**
+ * Splits an XML document made of a list of records, such as the entry elements of an NVD feed,
+ * into smaller documents of the same form.  Each chunk is the text before the first record, a run
+ * of whole records, and the text after the last record, so it is still well formed as long as
+ * records are never nested in each other.
+ *
+ * Each chunk holds at least one record, and otherwise stays under chunkSize characters.  A document
+ * without any records is returned as a single chunk.
+ */
+public class XmlRecordChunker implements ContentChunker {
+	private final String content;
+	private final String closeTag;
+	private final int chunkSize;
+	private final String header;
+	private final String footer;
+	//end of the last record
+	private final int recordsEnd;
+	//where the next chunk's records start
+	private int position;
+	private boolean finished;
+
+	/**
+	 * @param content the XML document
+	 * @param recordElement name of the record element, including any namespace prefix
+	 * @param chunkSize maximum characters in a chunk, unless a single record is longer
+	 */
+	public XmlRecordChunker(String content, String recordElement, int chunkSize) {
+		this.content = content;
+		this.closeTag = "</" + recordElement + ">";
+		this.chunkSize = Math.max(1, chunkSize);
+		int first = findStartTag(content, "<" + recordElement);
+		int last = content.lastIndexOf(closeTag);
+		if ((first < 0) || (last < first)) {
+			header = null;
+			footer = null;
+			recordsEnd = 0;
+		} else {
+			header = content.substring(0, first);
+			recordsEnd = last + closeTag.length();
+			footer = content.substring(recordsEnd);
+			position = first;
+		}
+	}
+
+	@Override
+	public String nextChunk() {
+		if (finished) {
+			return null;
+		}
+		if (header == null) {
+			finished = true;
+			return content;
+		}
+		int overhead = header.length() + footer.length();
+		int end = position;
+		while (end < recordsEnd) {
+			int next = content.indexOf(closeTag, end) + closeTag.length();
+			if ((end > position) && (overhead + next - position > chunkSize)) {
+				break;
+			}
+			end = next;
+		}
+		StringBuilder chunk = new StringBuilder(overhead + end - position);
+		chunk.append(header).append(content, position, end).append(footer);
+		position = end;
+		finished = (position >= recordsEnd);
+		return chunk.toString();
+	}
+
+	/**
+	 * @return the index of the first start tag (not just a name that begins the same way), or -1
+	 */
+	private static int findStartTag(String content, String tagStart) {
+		int index = content.indexOf(tagStart);
+		while (index >= 0) {
+			int after = index + tagStart.length();
+			if (after < content.length()) {
+				char c = content.charAt(after);
+				if ((c == '>') || (c == '/') || Character.isWhitespace(c)) {
+					return index;
+				}
+			}
+			index = content.indexOf(tagStart, after);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,164 @@
+package gov.ornl.stucco.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import gov.ornl.stucco.ConfigLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide latency histograms and event counters, each kept per stage and routing key.
+ *
+ * Stages are timed with
+ * <pre>
+ *     long start = System.nanoTime();
+ *     ...
+ *     Metrics.record(Metrics.EXTRACT, routingKey, start);
+ * </pre>
+ * and the histogram count doubles as the stage's throughput counter.  Everything is exported over
+ * JMX and, when a port is configured, as Prometheus text over HTTP; see start().
+ */
+public final class Metrics {
+	private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+	/** taking a message off the queue */
+	public static final String QUEUE_FETCH = "queue_fetch";
+	/** fetching content from the document service */
+	public static final String DOC_FETCH = "doc_fetch";
+	/** running the extractor or annotator on the content */
+	public static final String EXTRACT = "extract";
+	/** PreprocessSTIX.normalizeSTIX */
+	public static final String NORMALIZE = "normalize";
+	/** GraphConstructor.constructGraph */
+	public static final String GRAPH = "graph_construction";
+	/** from handing a subgraph to alignment until it is loaded */
+	public static final String ALIGN = "alignment";
+	/** acking a message */
+	public static final String ACK = "ack";
+	/** from receiving a message until it is acked */
+	public static final String TOTAL = "total";
+
+	/** counter of subgraphs that were skipped because all of it was loaded within the dedup TTL */
+	public static final String DUPLICATE_SUBGRAPHS = "duplicate_subgraphs";
+	/** counter of messages that were acked without processing because their fingerprint was known */
+	public static final String DUPLICATE_MESSAGES = "duplicate_messages";
+	/** counter of times consumption was paused by backpressure, kept per transformer rather than routing key */
+	public static final String BACKPRESSURE_PAUSES = "backpressure_pauses";
+
+	public static final String JMX_NAME = "gov.ornl.stucco:type=Metrics";
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> histograms = new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+	private static final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counters = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+	private static MetricsHttpServer httpServer;
+
+	private Metrics() {
+	}
+
+	/**
+	 * Records the time since startNanos, a System.nanoTime() value, for a stage.
+	 */
+	public static void record(String stage, String routingKey, long startNanos) {
+		histogram(stage, routingKey).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Counts an event that has no duration.
+	 */
+	public static void increment(String name, String routingKey) {
+		ConcurrentMap<String, AtomicLong> byKey = byName(counters, name);
+		AtomicLong counter = byKey.get(routingKey);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = byKey.putIfAbsent(routingKey, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	public static LatencyHistogram histogram(String stage, String routingKey) {
+		ConcurrentMap<String, LatencyHistogram> byKey = byName(histograms, stage);
+		LatencyHistogram histogram = byKey.get(routingKey);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = byKey.putIfAbsent(routingKey, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return stage -> routing key -> histogram
+	 */
+	public static Map<String, ConcurrentMap<String, LatencyHistogram>> getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * @return counter name -> routing key -> count
+	 */
+	public static Map<String, ConcurrentMap<String, AtomicLong>> getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Starts the exporters described by the "metrics" config section: jmx (default true) and
+	 * httpPort (default 0, meaning no HTTP endpoint).  Only the first call has any effect.
+	 */
+	public static synchronized void start(Map<String, Object> configMap) {
+		if (ConfigLoader.getBoolean(configMap, "jmx", true)) {
+			try {
+				ObjectName name = new ObjectName(JMX_NAME);
+				if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+				}
+			} catch (JMException e) {
+				logger.warn("Could not register metrics with JMX.", e);
+			}
+		}
+		int httpPort = ConfigLoader.getInt(configMap, "httpPort", 0);
+		if ((httpPort > 0) && (httpServer == null)) {
+			try {
+				httpServer = new MetricsHttpServer(ConfigLoader.getString(configMap, "httpHost", "localhost"), httpPort);
+				logger.info("Serving metrics on port " + httpPort);
+			} catch (IOException e) {
+				logger.warn("Could not start metrics HTTP endpoint on port " + httpPort, e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the HTTP endpoint, if it was started.
+	 */
+	public static synchronized void stop() {
+		if (httpServer != null) {
+			httpServer.stop();
+			httpServer = null;
+		}
+	}
+
+	private static <T> ConcurrentMap<String, T> byName(ConcurrentMap<String, ConcurrentMap<String, T>> map, String name) {
+		ConcurrentMap<String, T> byKey = map.get(name);
+		if (byKey == null) {
+			ConcurrentMap<String, T> created = new ConcurrentHashMap<String, T>();
+			byKey = map.putIfAbsent(name, created);
+			if (byKey == null) {
+				byKey = created;
+			}
+		}
+		return byKey;
+	}
+}
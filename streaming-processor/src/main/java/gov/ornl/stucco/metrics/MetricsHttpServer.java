@@ -0,0 +1,87 @@
+package gov.ornl.stucco.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves Metrics at /metrics in the Prometheus text format.  Each stage is a summary named
+ * stucco_&lt;stage&gt;_seconds with a routing_key label, and each counter is stucco_&lt;name&gt;_total.
+ */
+public class MetricsHttpServer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final HttpServer server;
+
+	public MetricsHttpServer(String host, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = render().getBytes(UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		//requests are handled on the server's own thread, which is plenty for the odd scrape
+		server.setExecutor(null);
+		server.start();
+	}
+
+	/**
+	 * Stops the server thread, which would otherwise keep the JVM running.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	static String render() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> stage : Metrics.getHistograms().entrySet()) {
+			String name = "stucco_" + stage.getKey() + "_seconds";
+			text.append("# TYPE ").append(name).append(" summary\n");
+			for (Map.Entry<String, LatencyHistogram> entry : stage.getValue().entrySet()) {
+				LatencyHistogram histogram = entry.getValue();
+				String label = "routing_key=\"" + escape(entry.getKey()) + "\"";
+				for (double quantile : QUANTILES) {
+					text.append(name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ")
+						.append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+				}
+				text.append(name).append("_sum{").append(label).append("} ").append(seconds(histogram.getSum())).append('\n');
+				text.append(name).append("_count{").append(label).append("} ").append(histogram.getCount()).append('\n');
+			}
+		}
+		for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> counter : Metrics.getCounters().entrySet()) {
+			String name = "stucco_" + counter.getKey() + "_total";
+			text.append("# TYPE ").append(name).append(" counter\n");
+			for (Map.Entry<String, AtomicLong> entry : counter.getValue().entrySet()) {
+				text.append(name).append("{routing_key=\"").append(escape(entry.getKey())).append("\"} ")
+					.append(entry.getValue().get()).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1e6);
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,116 @@
+package gov.ornl.stucco.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes Metrics over JMX.  Attributes are named stage.routingKey.statistic, where statistic is
+ * count, meanMicros, p50Micros, p99Micros, p999Micros or maxMicros, and counter.routingKey for
+ * counters.  The attribute list grows as new stages and routing keys are seen.
+ */
+public class MetricsMBean implements DynamicMBean {
+	private static final String[] STATISTICS = {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> stage : Metrics.getHistograms().entrySet()) {
+			for (Map.Entry<String, LatencyHistogram> entry : stage.getValue().entrySet()) {
+				String prefix = stage.getKey() + "." + entry.getKey() + ".";
+				if (attribute.startsWith(prefix)) {
+					Long value = statistic(entry.getValue(), attribute.substring(prefix.length()));
+					if (value != null) {
+						return value;
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> counter : Metrics.getCounters().entrySet()) {
+			for (Map.Entry<String, AtomicLong> entry : counter.getValue().entrySet()) {
+				if (attribute.equals(counter.getKey() + "." + entry.getKey())) {
+					return entry.getValue().get();
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				//left out, as the DynamicMBean contract asks
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only.");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		//there are no operations
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> stage : Metrics.getHistograms().entrySet()) {
+			for (String routingKey : stage.getValue().keySet()) {
+				for (String statistic : STATISTICS) {
+					attributes.add(new MBeanAttributeInfo(stage.getKey() + "." + routingKey + "." + statistic, "long",
+							statistic + " of " + stage.getKey() + " for " + routingKey, true, false, false));
+				}
+			}
+		}
+		for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> counter : Metrics.getCounters().entrySet()) {
+			for (String routingKey : counter.getValue().keySet()) {
+				attributes.add(new MBeanAttributeInfo(counter.getKey() + "." + routingKey, "long",
+						counter.getKey() + " for " + routingKey, true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "Stage latencies and counters, per routing key",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+
+	private static Long statistic(LatencyHistogram histogram, String statistic) {
+		if ("count".equals(statistic)) {
+			return histogram.getCount();
+		} else if ("meanMicros".equals(statistic)) {
+			long count = histogram.getCount();
+			return (count == 0) ? 0 : histogram.getSum() / count;
+		} else if ("p50Micros".equals(statistic)) {
+			return histogram.getValueAtPercentile(50);
+		} else if ("p99Micros".equals(statistic)) {
+			return histogram.getValueAtPercentile(99);
+		} else if ("p999Micros".equals(statistic)) {
+			return histogram.getValueAtPercentile(99.9);
+		} else if ("maxMicros".equals(statistic)) {
+			return histogram.getMax();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,18 @@
+package gov.ornl.stucco.structured;
+
+import gov.ornl.stucco.ContentChunker;
+
+/**
+ * An extractor for data made of independent records, such as lines of a flow dump or entries of
+ * an NVD feed, where any run of whole records can be extracted on its own.  Documents from these
+ * sources that are larger than the configured chunkSize are extracted and aligned a chunk at a
+ * time, instead of as one string and one subgraph.
+ */
+public interface ChunkedExtractorFactory extends ExtractorFactory {
+
+	/**
+	 * @param chunkSize the maximum characters in a chunk, unless a single record is longer
+	 * @return a chunker that splits content at record boundaries
+	 */
+	public ContentChunker createChunker(String content, int chunkSize);
+}
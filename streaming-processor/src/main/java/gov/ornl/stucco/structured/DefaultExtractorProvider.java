@@ -0,0 +1,360 @@
+package gov.ornl.stucco.structured;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import gov.ornl.stucco.ContentChunker;
+import gov.ornl.stucco.DocumentFetcher;
+import gov.ornl.stucco.DocumentFetcher.GroupDocument;
+import gov.ornl.stucco.LineChunker;
+import gov.ornl.stucco.XmlRecordChunker;
+import gov.ornl.stucco.stix_extractors.BugtraqExtractor;
+import gov.ornl.stucco.stix_extractors.CaidaExtractor;
+import gov.ornl.stucco.stix_extractors.CIF1d4Extractor;
+import gov.ornl.stucco.stix_extractors.CIFZeusTrackerExtractor;
+import gov.ornl.stucco.stix_extractors.CIFEmergingThreatsExtractor;
+import gov.ornl.stucco.stix_extractors.CleanMxVirusExtractor;
+import gov.ornl.stucco.stix_extractors.ClientBannerExtractor;
+import gov.ornl.stucco.stix_extractors.CpeExtractor;
+import gov.ornl.stucco.stix_extractors.CveExtractor;
+import gov.ornl.stucco.stix_extractors.FSecureExtractor;
+import gov.ornl.stucco.stix_extractors.GeoIPExtractor;
+import gov.ornl.stucco.stix_extractors.HoneExtractor;
+import gov.ornl.stucco.stix_extractors.LoginEventExtractor;
+import gov.ornl.stucco.stix_extractors.MalwareDomainListExtractor;
+import gov.ornl.stucco.stix_extractors.MetasploitExtractor;
+import gov.ornl.stucco.stix_extractors.NvdToStixExtractor;
+import gov.ornl.stucco.stix_extractors.PackageListExtractor;
+import gov.ornl.stucco.stix_extractors.ServiceListExtractor;
+import gov.ornl.stucco.stix_extractors.SophosExtractor;
+import gov.ornl.stucco.graph_extractors.ArgusGraphExtractor;
+import gov.ornl.stucco.graph_extractors.HTTPDataGraphExtractor;
+import gov.ornl.stucco.graph_extractors.HTTPRDataGraphExtractor;
+import gov.ornl.stucco.graph_extractors.SituGraphExtractor;
+import gov.ornl.stucco.graph_extractors.SnoGraphExtractor;
+import gov.ornl.stucco.graph_extractors.DNSRecordGraphExtractor;
+import gov.ornl.stucco.graph_extractors.BannerGraphExtractor;
+import gov.pnnl.stucco.doc_service_client.DocServiceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the data sources that ship with the StructuredTransformer.
+ */
+public class DefaultExtractorProvider implements ExtractorProvider {
+	private static final Logger logger = LoggerFactory.getLogger(DefaultExtractorProvider.class);
+
+	private static final String[] argusHeaders = {"StartTime", "Flgs", "Proto", "SrcAddr", "Sport", "Dir", "DstAddr", "Dport", "TotPkts", "TotBytes", "State"};
+
+	public static final String HOSTNAME_KEY = "hostName";
+
+	@Override
+	public void registerExtractors(ExtractorRegistry registry, final DocumentFetcher fetcher) {
+		//graph extractors
+		registry.register("argus", new LineOrientedFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new ArgusGraphExtractor(argusHeaders, content).getGraph());
+			}
+		});
+		//TODO: find name of http file ... for now (for testing) it just has .http extencion
+		registry.register("http", new LineOrientedFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new HTTPDataGraphExtractor(content).getGraph());
+			}
+		});
+		registry.register("httpr", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new HTTPRDataGraphExtractor(content).getGraph());
+			}
+		});
+		registry.register("situ", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new SituGraphExtractor(content).getGraph());
+			}
+		});
+		registry.register("sno", new LineOrientedFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new SnoGraphExtractor(content).getGraph());
+			}
+		});
+		registry.register("dnsrecord", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new DNSRecordGraphExtractor(content).getGraph());
+			}
+		});
+		registry.register("serverbanner", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.graph(new BannerGraphExtractor(content).getGraph());
+			}
+		});
+
+		//already STIX
+		registry.register("stix", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stixDocument(content);
+			}
+		});
+
+		//STIX extractors
+		registry.register("cve", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CveExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("nvd", new XmlRecordFactory("entry") {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new NvdToStixExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("cpe", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CpeExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("maxmind", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new GeoIPExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("metasploit", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new MetasploitExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("cleanmx", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CleanMxVirusExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("login_events", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new LoginEventExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("installed_package", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new PackageListExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("1d4", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CIF1d4Extractor(content).getStixPackage());
+			}
+		});
+		registry.register("zeustracker", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CIFZeusTrackerExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("emergingthreats", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new CIFEmergingThreatsExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("servicelist", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new ServiceListExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("clientbanner", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new ClientBannerExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("fsecure", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new FSecureExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("malwaredomainlist", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				return Extraction.stix(new MalwareDomainListExtractor(content).getStixPackage());
+			}
+		});
+		registry.register("hone", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				HoneExtractor honeExtractor = null;
+				if ((metaDataMap != null) && (metaDataMap.containsKey(HOSTNAME_KEY))) {
+					honeExtractor = new HoneExtractor(content, metaDataMap.get(HOSTNAME_KEY));
+				} else {
+					honeExtractor = new HoneExtractor(content);
+				}
+				return Extraction.stix(honeExtractor.getStixPackage());
+			}
+		});
+
+		//STIX extractors that combine several documents
+		//TODO: ensure file names match
+		registry.register("caida", new SingleDocumentFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				String as2org = null;
+				String pfx2as = null;
+				List<GroupDocument> documents = null;
+				try {
+					documents = fetcher.fetchGroup(content);
+				} catch (DocServiceException e) {
+					//not a failure to extract, the message should be processed again if it is re-sent
+					throw new RuntimeException("Could not fetch the document group.", e);
+				}
+				for (GroupDocument document : documents) {
+					String sourceURL = document.sourceURL;
+					String itemContent = document.content;
+					if (sourceURL.contains("as2org")) {
+						as2org = itemContent;
+					} else if (sourceURL.contains("pfx2as")) {
+						pfx2as = itemContent;
+					} else {
+						logger.warn("unexpected URL (sophos) " + sourceURL);
+					}
+				}
+				if (as2org != null && pfx2as != null) {
+					return Extraction.stix(new CaidaExtractor(as2org, pfx2as).getStixPackage());
+				}
+				return null;
+			}
+		});
+		registry.register("sophos", new DocumentGroupFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				String summary = null;
+				String details = null;
+				List<GroupDocument> documents = null;
+				try {
+					documents = fetcher.fetchGroup(content);
+				} catch (DocServiceException e) {
+					//not a failure to extract, the message should be processed again if it is re-sent
+					throw new RuntimeException("Could not fetch the document group.", e);
+				}
+				for (GroupDocument document : documents) {
+					String sourceURL = document.sourceURL;
+					String itemContent = document.content;
+					if (sourceURL.contains("/detailed-analysis.aspx")) {
+						details = itemContent;
+					} else if(sourceURL.contains(".aspx")) {
+						summary = itemContent;
+					} else {
+						logger.warn("unexpected URL (sophos) " + sourceURL);
+					}
+				}
+				if (summary != null && details != null) {
+					return Extraction.stix(new SophosExtractor(summary, details).getStixPackage());
+				}
+				logger.warn("Sophos: some required fields were null, skipping group.\nMessage was:" + content);
+				return null;
+			}
+		});
+		registry.register("bugtraq", new DocumentGroupFactory() {
+			@Override
+			public Extraction extract(String content, Map<String, String> metaDataMap) {
+				String info = null;
+				String discussion = null;
+				String exploit = null;
+				String solution = null;
+				String references = null;
+				List<GroupDocument> documents = null;
+				try {
+					documents = fetcher.fetchGroup(content);
+				} catch (DocServiceException e) {
+					//not a failure to extract, the message should be processed again if it is re-sent
+					throw new RuntimeException("Could not fetch the document group.", e);
+				}
+				for (GroupDocument document : documents) {
+					String sourceURL = document.sourceURL;
+					String itemContent = document.content;
+					if (sourceURL.contains("/info")) {
+						info = itemContent;
+					} else if (sourceURL.contains("/discuss")) { //interestingly, "/discuss" and "/discussion" are both valid urls for this item
+						discussion = itemContent;
+					} else if (sourceURL.contains("/exploit")) {
+						exploit = itemContent;
+					} else if (sourceURL.contains("/solution")) {
+						solution = itemContent;
+					} else if (sourceURL.contains("/references")) {
+						references = itemContent;
+					} else {
+						logger.warn("unexpected URL (bugtraq) " + sourceURL);
+					}
+				}
+				if (info != null && discussion != null && exploit != null && solution != null && references != null) {
+					return Extraction.stix(new BugtraqExtractor(info, discussion, exploit, solution, references).getStixPackage());
+				}
+				logger.warn("Bugtraq: some required fields were null, skipping group.\nMessage was:" + content);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Base for extractors whose message is the content itself, or the id of a single document.
+	 */
+	public static abstract class SingleDocumentFactory implements ExtractorFactory {
+		@Override
+		public boolean isDocumentGroup() {
+			return false;
+		}
+	}
+
+	/**
+	 * Base for extractors of line oriented data, which can be extracted a chunk of lines at a time.
+	 */
+	public static abstract class LineOrientedFactory extends SingleDocumentFactory implements ChunkedExtractorFactory {
+		@Override
+		public ContentChunker createChunker(String content, int chunkSize) {
+			return new LineChunker(new StringReader(content), chunkSize);
+		}
+	}
+
+	/**
+	 * Base for extractors of XML documents made of a list of records, which can be extracted a
+	 * chunk of records at a time.
+	 */
+	public static abstract class XmlRecordFactory extends SingleDocumentFactory implements ChunkedExtractorFactory {
+		private final String recordElement;
+
+		public XmlRecordFactory(String recordElement) {
+			this.recordElement = recordElement;
+		}
+
+		@Override
+		public ContentChunker createChunker(String content, int chunkSize) {
+			return new XmlRecordChunker(content, recordElement, chunkSize);
+		}
+	}
+
+	/**
+	 * Base for extractors whose message lists the ids of several documents, one "docId URL" per line.
+	 */
+	public static abstract class DocumentGroupFactory implements ExtractorFactory {
+		@Override
+		public boolean isDocumentGroup() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package gov.ornl.stucco.structured;
+
+import org.json.JSONObject;
+import org.mitre.stix.stix_1.STIXPackage;
+
+/**
+ * The output of an extractor for one message: a STIX package, a graph built directly by a graph
+ * extractor, or a message that was already a STIX document.
+ */
+public class Extraction {
+	private final STIXPackage stixPackage;
+	private final JSONObject graph;
+	private final String stixDocument;
+
+	private Extraction(STIXPackage stixPackage, JSONObject graph, String stixDocument) {
+		this.stixPackage = stixPackage;
+		this.graph = graph;
+		this.stixDocument = stixDocument;
+	}
+
+	public static Extraction stix(STIXPackage stixPackage) {
+		return (stixPackage == null) ? null : new Extraction(stixPackage, null, null);
+	}
+
+	public static Extraction graph(JSONObject graph) {
+		return (graph == null) ? null : new Extraction(null, graph, null);
+	}
+
+	public static Extraction stixDocument(String stixDocument) {
+		return (stixDocument == null) ? null : new Extraction(null, null, stixDocument);
+	}
+
+	public STIXPackage getStixPackage() {
+		return stixPackage;
+	}
+
+	public JSONObject getGraph() {
+		return graph;
+	}
+
+	public String getStixDocument() {
+		return stixDocument;
+	}
+}
@@ -0,0 +1,23 @@
+package gov.ornl.stucco.structured;
+
+import java.util.Map;
+
+/**
+ * Runs the extractor for one data source on the content of a message.
+ */
+public interface ExtractorFactory {
+
+	/**
+	 * @param content the text to parse
+	 * @param metaDataMap any additional required info which is not included in the content, may be null
+	 * @return the extracted content, or null if nothing could be extracted
+	 * @throws RuntimeException with a DocServiceException as its cause if a document group could not be fetched
+	 */
+	public Extraction extract(String content, Map<String, String> metaDataMap);
+
+	/**
+	 * @return true if the message lists several document-service ids that the extractor fetches
+	 * itself, rather than a single id to be fetched before extraction
+	 */
+	public boolean isDocumentGroup();
+}
@@ -0,0 +1,20 @@
+package gov.ornl.stucco.structured;
+
+import gov.ornl.stucco.DocumentFetcher;
+
+/**
+ * Service provider interface for adding data sources to the StructuredTransformer.
+ *
+ * Implementations are found with java.util.ServiceLoader, so a new source can be added by putting a
+ * jar on the classpath that lists its provider class in
+ * META-INF/services/gov.ornl.stucco.structured.ExtractorProvider.
+ * Providers are registered after the built-in sources, so they can also replace them.
+ */
+public interface ExtractorProvider {
+
+	/**
+	 * @param registry add factories here, keyed by the last segment of the routing key
+	 * @param fetcher for extractors that need to fetch additional documents
+	 */
+	public void registerExtractors(ExtractorRegistry registry, DocumentFetcher fetcher);
+}
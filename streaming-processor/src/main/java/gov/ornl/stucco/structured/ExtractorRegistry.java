@@ -0,0 +1,79 @@
+package gov.ornl.stucco.structured;
+
+import gov.ornl.stucco.DocumentFetcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps routing keys to the extractor for their data source.  A source is identified by the last
+ * segment of the routing key with any '-' removed, so "stucco.in.structured.clean-mx" resolves to
+ * the factory registered for "cleanmx".  Each routing key is resolved once and then cached.
+ */
+public class ExtractorRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(ExtractorRegistry.class);
+
+	//stands in for "no extractor", since the cache can't hold null
+	private static final ExtractorFactory UNKNOWN = new ExtractorFactory() {
+		@Override
+		public Extraction extract(String content, Map<String, String> metaDataMap) {
+			return null;
+		}
+
+		@Override
+		public boolean isDocumentGroup() {
+			return false;
+		}
+	};
+
+	private final Map<String, ExtractorFactory> factories = new HashMap<String, ExtractorFactory>();
+	private final ConcurrentHashMap<String, ExtractorFactory> resolved = new ConcurrentHashMap<String, ExtractorFactory>();
+
+	/**
+	 * Creates a registry with the built-in data sources, plus any found through ExtractorProvider.
+	 */
+	public static ExtractorRegistry load(DocumentFetcher fetcher) {
+		ExtractorRegistry registry = new ExtractorRegistry();
+		new DefaultExtractorProvider().registerExtractors(registry, fetcher);
+		for (ExtractorProvider provider : ServiceLoader.load(ExtractorProvider.class)) {
+			logger.info("Registering extractors from " + provider.getClass().getName());
+			provider.registerExtractors(registry, fetcher);
+		}
+		return registry;
+	}
+
+	public synchronized void register(String source, ExtractorFactory factory) {
+		if (factories.put(normalize(source), factory) != null) {
+			logger.info("Replaced extractor for data source '" + source + "'.");
+		}
+		resolved.clear();
+	}
+
+	/**
+	 * @param routingKey the (lower case) routing key of a message
+	 * @return the factory for the routing key's data source, or null if there is none
+	 */
+	public ExtractorFactory lookup(String routingKey) {
+		ExtractorFactory factory = resolved.get(routingKey);
+		if (factory == null) {
+			String source = normalize(routingKey.substring(routingKey.lastIndexOf('.') + 1));
+			synchronized (this) {
+				factory = factories.get(source);
+			}
+			if (factory == null) {
+				factory = UNKNOWN;
+			}
+			resolved.put(routingKey, factory);
+		}
+		return (factory == UNKNOWN) ? null : factory;
+	}
+
+	private static String normalize(String source) {
+		return source.replace("-", "").toLowerCase();
+	}
+}
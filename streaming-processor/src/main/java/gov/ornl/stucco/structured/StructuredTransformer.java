@@ -1,54 +1,45 @@
 package gov.ornl.stucco.structured;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
-import java.io.File;
 import java.io.FileWriter;
+import java.nio.charset.Charset;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import gov.ornl.stucco.AlignmentBatcher;
+import gov.ornl.stucco.BackpressureController;
+import gov.ornl.stucco.BlockingIO;
+import gov.ornl.stucco.ChunkCheckpointStore;
 import gov.ornl.stucco.ConfigLoader;
+import gov.ornl.stucco.ContentChunker;
+import gov.ornl.stucco.IdleStrategy;
+import gov.ornl.stucco.LaneScheduler;
 import gov.ornl.stucco.RabbitMQConsumer;
+import gov.ornl.stucco.OrderedExecutor;
+import gov.ornl.stucco.DocumentCache;
+import gov.ornl.stucco.DocumentFetcher;
+import gov.ornl.stucco.FingerprintStore;
+import gov.ornl.stucco.STIXFileWriter;
+import gov.ornl.stucco.STIXNormalizer;
+import gov.ornl.stucco.STIXOutput;
+import gov.ornl.stucco.STIXSegmentWriter;
+import gov.ornl.stucco.SubgraphDeduplicator;
 import gov.ornl.stucco.GraphConstructor;
 import gov.ornl.stucco.AlignFactory;
 import gov.ornl.stucco.Align;
-import gov.ornl.stucco.preprocessors.PreprocessSTIX;
+import gov.ornl.stucco.metrics.Metrics;
 import gov.ornl.stucco.preprocessors.PreprocessSTIX.Vertex;
-import gov.ornl.stucco.stix_extractors.BugtraqExtractor;
-import gov.ornl.stucco.stix_extractors.CaidaExtractor;
-import gov.ornl.stucco.stix_extractors.CIF1d4Extractor;
-import gov.ornl.stucco.stix_extractors.CIFZeusTrackerExtractor;
-import gov.ornl.stucco.stix_extractors.CIFEmergingThreatsExtractor;
-import gov.ornl.stucco.stix_extractors.CleanMxVirusExtractor;
-import gov.ornl.stucco.stix_extractors.ClientBannerExtractor;
-import gov.ornl.stucco.stix_extractors.CpeExtractor;
-import gov.ornl.stucco.stix_extractors.CveExtractor;
-import gov.ornl.stucco.stix_extractors.FSecureExtractor;
-import gov.ornl.stucco.stix_extractors.GeoIPExtractor;
-import gov.ornl.stucco.stix_extractors.HoneExtractor;
-import gov.ornl.stucco.stix_extractors.LoginEventExtractor;
-import gov.ornl.stucco.stix_extractors.MalwareDomainListExtractor;
-import gov.ornl.stucco.stix_extractors.MetasploitExtractor;
-import gov.ornl.stucco.stix_extractors.NvdToStixExtractor;
-import gov.ornl.stucco.stix_extractors.PackageListExtractor;
-import gov.ornl.stucco.stix_extractors.ServiceListExtractor;
-import gov.ornl.stucco.stix_extractors.SophosExtractor;
-import gov.ornl.stucco.graph_extractors.ArgusGraphExtractor;
-import gov.ornl.stucco.graph_extractors.HTTPDataGraphExtractor;
-import gov.ornl.stucco.graph_extractors.HTTPRDataGraphExtractor;
-import gov.ornl.stucco.graph_extractors.SituGraphExtractor;
-import gov.ornl.stucco.graph_extractors.SnoGraphExtractor;
-import gov.ornl.stucco.graph_extractors.DNSRecordGraphExtractor;
-import gov.ornl.stucco.graph_extractors.BannerGraphExtractor;
 import gov.pnnl.stucco.doc_service_client.DocServiceClient;
 import gov.pnnl.stucco.doc_service_client.DocServiceException;
-import gov.pnnl.stucco.doc_service_client.DocumentObject;
 
 import org.mitre.stix.stix_1.STIXPackage;
 import org.mitre.cybox.cybox_2.Observables;
@@ -63,24 +54,59 @@ public class StructuredTransformer {
 	private static final Logger logger = LoggerFactory.getLogger(StructuredTransformer.class);
 	private static final String PROCESS_NAME = "STRUCTURED";
 
-	private static final String[] argusHeaders = {"StartTime", "Flgs", "Proto", "SrcAddr", "Sport", "Dir", "DstAddr", "Dport", "TotPkts", "TotBytes", "State"};
-
 	private RabbitMQConsumer consumer;
 
 	private DocServiceClient docClient;
+	private DocumentFetcher docFetcher;
+	private ExtractorRegistry extractors;
 
-	private PreprocessSTIX preprocessSTIX; 
-	private GraphConstructor constructGraph;
+	//not shared between worker threads
+	private ThreadLocal<STIXNormalizer> stixNormalizer;
+	private ThreadLocal<GraphConstructor> constructGraph;
 	private Align alignment;
 	
 	private boolean persistent;
-	private int sleepTime;
+	private IdleStrategy idleStrategy;
+	
+	private boolean pushMode;
+	private int prefetchCount;
+	private int ackBatchSize;
+	private long ackBatchTimeout;
+	private int channels;
+	private List<Map<String, Object>> shardQueues;
 	
 	private boolean outputToDB;
 	private boolean outputToSTIXFile;
 	private String outputSTIXPath;
+	private STIXOutput stixWriter;
+	
+	private int alignBatchSize;
+	private long alignBatchTimeout;
+	private int chunkSize;
+	private ChunkCheckpointStore checkpointStore;
 	
-	private final String HOSTNAME_KEY = "hostName";
+	private int workerThreads;
+	private int workerQueueSize;
+	private String partitionKey;
+	private OrderedExecutor workerPool;
+	private List<Map<String, Object>> laneConfigs;
+	private LaneScheduler laneScheduler;
+	//set by worker threads and by acks sent after an alignment batch is loaded
+	private volatile boolean workerFailed;
+	private AlignmentBatcher alignmentBatcher;
+	private SubgraphDeduplicator deduplicator;
+	private BlockingIO io;
+	private FingerprintStore fingerprints;
+	private BackpressureController backpressure;
+	//fingerprints of the messages in progress by delivery tag, recorded once a message is done
+	private final ConcurrentMap<Long, Long> pendingFingerprints = new ConcurrentHashMap<Long, Long>();
+	
+	private final String HOSTNAME_KEY = DefaultExtractorProvider.HOSTNAME_KEY;
+	private static final String PARTITION_ROUTING_KEY = "routingKey";
+	private static final String PARTITION_NONE = "none";
+	private static final long WORKER_SHUTDOWN_TIMEOUT = 300;
+	private static final long BACKPRESSURE_WAIT = 100;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	
 	public StructuredTransformer() {
 		logger.info("loading config file from default location");
@@ -95,7 +121,7 @@ public class StructuredTransformer {
 	}
 	
 	private void init(ConfigLoader configLoader) {
-		Map<String, Object> configMap;
+		Map<String, Object> configMap = null;
 		String exchange = null;
 		String queue = null;
 		String host = null;
@@ -111,6 +137,20 @@ public class StructuredTransformer {
 			outputToDB = Boolean.parseBoolean(String.valueOf(configMap.get("outputToDB")));
 			outputToSTIXFile = Boolean.parseBoolean(String.valueOf(configMap.get("outputToSTIXFile")));
 			outputSTIXPath = String.valueOf(configMap.get("outputSTIXPath"));
+			if (outputToSTIXFile) {
+				int flushSize = ConfigLoader.getInt(configMap, "stixFlushSize", 64 * 1024);
+				long flushInterval = ConfigLoader.getLong(configMap, "stixFlushInterval", 1000);
+				STIXFileWriter.SyncPolicy syncPolicy = STIXFileWriter.SyncPolicy.valueOf(ConfigLoader.getString(configMap, "stixSync", "none").toUpperCase());
+				long rollSize = ConfigLoader.getLong(configMap, "stixRollSize", 0);
+				long rollInterval = ConfigLoader.getLong(configMap, "stixRollInterval", 0);
+				String format = ConfigLoader.getString(configMap, "stixOutputFormat", "plain");
+				if ("segments".equalsIgnoreCase(format)) {
+					boolean compress = "gzip".equalsIgnoreCase(ConfigLoader.getString(configMap, "stixCompression", "none"));
+					stixWriter = new STIXSegmentWriter(outputSTIXPath, compress, flushSize, flushInterval, syncPolicy, rollSize, rollInterval);
+				} else {
+					stixWriter = new STIXFileWriter(outputSTIXPath, flushSize, flushInterval, syncPolicy, rollSize, rollInterval);
+				}
+			}
 			exchange = String.valueOf(configMap.get("exchange"));
 			queue = String.valueOf(configMap.get("queue"));
 			host = String.valueOf(configMap.get("host"));
@@ -118,7 +158,31 @@ public class StructuredTransformer {
 			user = String.valueOf(configMap.get("username"));
 			password = String.valueOf(configMap.get("password"));
 			persistent = Boolean.parseBoolean(String.valueOf(configMap.get("persistent")));
-			sleepTime = Integer.parseInt(String.valueOf(configMap.get("emptyQueueSleepTime")));
+			idleStrategy = new IdleStrategy(ConfigLoader.getLong(configMap, "minIdleSleepTime", 10), 
+					ConfigLoader.getLong(configMap, "maxIdleSleepTime", 1000));
+			pushMode = "push".equalsIgnoreCase(ConfigLoader.getString(configMap, "consumeMode", "pull"));
+			prefetchCount = ConfigLoader.getInt(configMap, "prefetchCount", 100);
+			ackBatchSize = ConfigLoader.getInt(configMap, "ackBatchSize", 1);
+			ackBatchTimeout = ConfigLoader.getLong(configMap, "ackBatchTimeout", 1000);
+			channels = ConfigLoader.getInt(configMap, "channels", 1);
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> shards = (List<Map<String, Object>>) configMap.get("shards");
+			shardQueues = shards;
+			alignBatchSize = ConfigLoader.getInt(configMap, "alignBatchSize", 0);
+			alignBatchTimeout = ConfigLoader.getLong(configMap, "alignBatchTimeout", 1000);
+			deduplicator = SubgraphDeduplicator.fromConfig(configMap);
+			fingerprints = FingerprintStore.fromConfig(configMap);
+			chunkSize = ConfigLoader.getInt(configMap, "chunkSize", 0);
+			String checkpointPath = ConfigLoader.getString(configMap, "checkpointPath", "");
+			if ((chunkSize > 0) && !checkpointPath.isEmpty()) {
+				checkpointStore = new ChunkCheckpointStore(checkpointPath);
+			}
+			workerThreads = ConfigLoader.getInt(configMap, "workerThreads", 1);
+			workerQueueSize = ConfigLoader.getInt(configMap, "workerQueueSize", 4 * workerThreads);
+			partitionKey = ConfigLoader.getString(configMap, "partitionKey", PARTITION_ROUTING_KEY);
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> lanes = (List<Map<String, Object>>) configMap.get("lanes");
+			laneConfigs = lanes;
 			@SuppressWarnings("unchecked")
 			List<String> bindings = (List<String>)(configMap.get("bindings"));
 			bindingKeys = new String[bindings.size()];
@@ -137,16 +201,38 @@ public class StructuredTransformer {
 					"\nexchange: " + exchange + "\nqueue: " + queue + 
 					"\nuser: " + user + "\npass: " + password);
 			consumer = new RabbitMQConsumer(exchange, queue, host, port, user, password, bindingKeys);
+			consumer.setChannels(channels);
+			consumer.addShardQueues(shardQueues);
 			consumer.openQueue();
+			consumer.enableAckBatching(ackBatchSize, ackBatchTimeout);
+			if (pushMode) {
+				consumer.startConsuming(prefetchCount);
+			}
+			backpressure = BackpressureController.fromConfig(configMap, consumer, "structured");
 		} catch (IOException e) {
 			logger.error("Error initializing RabbitMQ connection.", e);
 			System.exit(-1);
 		}
 		logger.info("RabbitMQ connected.");
 		try {
-			preprocessSTIX = new PreprocessSTIX();
-			constructGraph = new GraphConstructor();
+			stixNormalizer = new ThreadLocal<STIXNormalizer>() {
+				@Override
+				protected STIXNormalizer initialValue() {
+					return new STIXNormalizer();
+				}
+			};
+			constructGraph = new ThreadLocal<GraphConstructor>() {
+				@Override
+				protected GraphConstructor initialValue() {
+					return new GraphConstructor();
+				}
+			};
+			io = BlockingIO.fromConfig(configLoader.getConfig("io"));
+			if (io != null) {
+				logger.info("Making document service and alignment calls on " + io);
+			}
 			alignment = AlignFactory.getAlign();
+			alignmentBatcher = new AlignmentBatcher(alignment, alignBatchSize, alignBatchTimeout, io);
 			
 			logger.info("DB connection created.  Connecting to document service...");
 			configMap = configLoader.getConfig("document_service");
@@ -154,10 +240,21 @@ public class StructuredTransformer {
 			host = String.valueOf(configMap.get("host"));
 			port = Integer.parseInt(String.valueOf(configMap.get("port")));
 			docClient = new DocServiceClient(host, port);
+			docFetcher = new DocumentFetcher(docClient, DocumentCache.fromConfig(configMap), ConfigLoader.getInt(configMap, "fetchThreads", 1), io);
+			extractors = ExtractorRegistry.load(docFetcher);
+			
+			Metrics.start(configLoader.getConfig("metrics"));
 		} catch (IOException e) {
 			logger.error("Error initializing Alignment and/or DB connection.", e);
 			System.exit(-1);
 		}
+		laneScheduler = LaneScheduler.fromConfig("structured-worker", workerThreads, workerQueueSize, laneConfigs);
+		if (laneScheduler != null) {
+			logger.info("Scheduling messages in " + laneConfigs.size() + " lane(s) on " + workerThreads + " worker threads, partitioned by '" + partitionKey + "'.");
+		} else if (workerThreads > 1) {
+			workerPool = new OrderedExecutor("structured-worker", workerThreads, workerQueueSize);
+			logger.info("Processing messages on " + workerThreads + " worker threads, partitioned by '" + partitionKey + "'.");
+		}
 		logger.info("Alignment obj, DB connection, and Document service client created.  Initialization complete!");
 	}
 
@@ -168,160 +265,33 @@ public class StructuredTransformer {
 		do {
 			//Get message from the queue
 			try {
-				response = consumer.getMessage();
+				response = fetchMessage();
 			} catch (IOException e) {
 				logger.error("Encountered RabbitMQ IO error:", e);
 				fatalError = true;
 			}
-			while (response != null && !fatalError) {
-				long itemStartTime = System.currentTimeMillis();
-				String routingKey = response.getEnvelope().getRoutingKey().toLowerCase();
-				long deliveryTag = response.getEnvelope().getDeliveryTag();
-				
-				String message = "";
-				if (response.getBody() != null) {
-					message = new String(response.getBody());
-					
-					/*long timestamp = 0;
-					if (response.getProps().getTimestamp() != null) {
-						timestamp = response.getProps().getTimestamp().getTime();
-					}*/
-	
-					boolean contentIncluded = false;
-					Map<String, Object> headerMap = response.getProps().getHeaders();
-					if ((headerMap != null) && (headerMap.containsKey("HasContent"))) {
-						contentIncluded = Boolean.valueOf(String.valueOf(headerMap.get("HasContent")));
-					}
-					
-					logger.debug("Recieved: " + routingKey + " deliveryTag=[" + deliveryTag + "] message- "+ message);
-				
-					//Get the document from the document server, if necessary
-					String content = message;
-					if (!contentIncluded && !routingKey.endsWith(".sophos") && !routingKey.endsWith(".bugtraq")) {
-						String docId = content.trim();
-						logger.debug("Retrieving document content from Document-Service for id '" + docId + "'.");
-	
-						try {
-							DocumentObject document = docClient.fetch(docId);
-							String rawContent = document.getDataAsString();
-							JSONObject jsonContent = new JSONObject(rawContent);
-							content = (String) jsonContent.get("document"); 
-						} catch (DocServiceException e) {
-							logger.error("Could not fetch document '" + docId + "' from Document-Service.", e);
-							logger.error("Message content was:\n"+message);
-						} catch (Exception e) {
-							logger.error("Other error in handling document '" + docId + "' from Document-Service.", e);
-							logger.error("Message content was:\n"+message);
-						}
-					}
-					
-					//get a few other things from the message before passing to extractors.
-					String docIDs = null;
-					if (!contentIncluded) docIDs = message;
-					Map<String, String> metaDataMap = null;
-					if (routingKey.endsWith(".hone")) {
-						if ((headerMap != null) && (headerMap.containsKey(HOSTNAME_KEY))) {
-							// The extractor needs Map<String,String>, and the headerMap is Map<String,Object>.
-							// Also, the original headerMap may contain things that extractors don't care about.
-							metaDataMap = new HashMap<String, String>();
-							String hostname = String.valueOf(headerMap.get(HOSTNAME_KEY));
-							metaDataMap.put(HOSTNAME_KEY, hostname);
-						}
-					}
-					
-					if(outputToDB){
-						//Construct the subgraph by parsing the structured data	
-						JSONObject graph = generateGraph(routingKey, content, metaDataMap, docIDs);
-	
-						//TODO: Add timestamp into subgraph
-						//Merge subgraph into full knowledge graph
-						if (graph != null) {
-							alignment.load(graph);
-						}
-					}
-
-					if(outputToSTIXFile){
-						//Construct the STIX content by parsing the structured data	
-						STIXPackage stixPackage = generateSTIX(routingKey, content, metaDataMap, docIDs);
-
-						//Output STIX content to file.
-						String stixContent = null;
-						if (stixPackage == null) {
-							JSONObject graph = generateGraph(routingKey, content, metaDataMap, docIDs); 
-							JSONObject vertices = graph.optJSONObject("vertices");
-							if (vertices != null) {
-								StringBuilder str = new StringBuilder();
-								for (String id : (Set<String>) vertices.keySet()) {
-									str.append(vertices.getJSONObject(id).getString("sourceDocument"));
-									str.append("\n");
-								}
-								stixContent = str.toString();
-							}
-						} else {
-							stixContent = stixPackage.toXMLString(true);
-						}
-
-						try {
-							FileOutputStream fos = new FileOutputStream(new File(outputSTIXPath),true);
-							try {
-								boolean written = false;
-								do {
-									try {
-										// Lock it!
-										FileLock lock = fos.getChannel().lock();
-										try {
-											// Write the bytes.
-											fos.write(stixContent.getBytes());
-											written = true;
-										} finally {
-											// Release the lock.
-											lock.release();
-										}
-									} catch ( OverlappingFileLockException ofle ) {
-										try {
-											// Wait a bit
-											Thread.sleep(0);
-										} catch (InterruptedException ex) {
-											throw new InterruptedIOException ("Interrupted waiting for a file lock.");
-										}
-									}
-								} while (!written);
-							} catch (IOException ex) {
-								logger.warn("Failed to lock " + outputSTIXPath, ex);
-							}
-							fos.close();
-						} catch (IOException e) {
-							logger.error("Could not write stix xml file: ", e);
-							fatalError = true;
-						}
-					}
-
-					//Ack the message was processed and can be discarded from the queue
-					try {
-						logger.debug("Acking: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
-						consumer.messageProcessed(deliveryTag);
-					} catch (IOException e) {
-						logger.error("Encountered RabbitMQ IO error:", e);
-						fatalError = true;
+			while (response != null && !fatalError && !workerFailed) {
+				idleStrategy.reset();
+				if (laneScheduler != null) {
+					String routingKey = response.getEnvelope().getRoutingKey().toLowerCase();
+					if (!laneScheduler.submit(routingKey, getPartitionKey(response), new MessageTask(response, prefetchDocument(response)))) {
+						//its lane is backed up, so the broker keeps it rather than it holding up the other lanes
+						fatalError = !retry(routingKey, response.getEnvelope().getDeliveryTag());
 					}
-				}
-				else {
+				} else if (workerPool == null) {
+					fatalError = !processMessage(response, null);
+				} else {
 					try {
-						consumer.retryMessage(deliveryTag);
-						logger.debug("Retrying: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
-					} catch (IOException e) {
-						logger.error("Encountered RabbitMQ IO error:", e);
+						workerPool.submit(getPartitionKey(response), new MessageTask(response, prefetchDocument(response)));
+					} catch (InterruptedException e) {
+						logger.error("Interrupted while queueing message for the worker pool.", e);
 						fatalError = true;
 					}
 				}
-				
-				long itemEndTime = System.currentTimeMillis();
-				logger.debug( "Finished processing item in " + (itemEndTime - itemStartTime) + " ms. " +
-						" routingKey: " + routingKey + " deliveryTag: " + deliveryTag + " message: " + message);
 
 				//Get next message from queue
 				try {
-					response = consumer.getMessage();
+					response = fetchMessage();
 				} catch (IOException e) {
 					logger.error("Encountered RabbitMQ IO error:", e);
 					fatalError = true;
@@ -329,13 +299,70 @@ public class StructuredTransformer {
 			}
 			
 			//Either the queue is empty, or an error occurred.
-			//Either way, sleep for a bit to prevent rapid loop of re-starting.
+			//If staying up, wait for more messages, backing off while the queue stays empty.
+			if (persistent && !fatalError) {
+				try {
+					idleStrategy.idle(consumer);
+				} catch (InterruptedException e) {
+					logger.info("Interrupted while waiting for messages, shutting down.");
+					fatalError = true;
+				}
+			}
+		} while (persistent && !fatalError && !workerFailed);
+		if (workerPool != null) {
+			try {
+				if (!workerPool.shutdown(WORKER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+					logger.warn("Worker pool did not finish within " + WORKER_SHUTDOWN_TIMEOUT + " seconds, unacked messages will be redelivered.");
+				}
+			} catch (InterruptedException consumed) {
+				//don't care in this case, exiting anyway.
+			}
+		}
+		if (laneScheduler != null) {
+			try {
+				if (!laneScheduler.shutdown(WORKER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+					logger.warn("Lanes did not finish within " + WORKER_SHUTDOWN_TIMEOUT + " seconds (" + laneScheduler + "), unacked messages will be redelivered.");
+				}
+			} catch (InterruptedException consumed) {
+				//don't care in this case, exiting anyway.
+			}
+		}
+		alignmentBatcher.close();
+		if (deduplicator != null) {
+			try {
+				deduplicator.close();
+			} catch (IOException e) {
+				logger.warn("Could not save subgraph hashes.", e);
+			}
+			logger.info("Subgraph dedup: " + deduplicator);
+		}
+		if (fingerprints != null) {
+			fingerprints.close();
+		}
+		if (backpressure != null) {
+			logger.info("Backpressure: " + backpressure);
+		}
+		if (io != null) {
 			try {
-				Thread.sleep(sleepTime);
+				if (!io.shutdown(WORKER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+					logger.warn("Document service and alignment calls did not finish within " + WORKER_SHUTDOWN_TIMEOUT + " seconds.");
+				}
 			} catch (InterruptedException consumed) {
 				//don't care in this case, exiting anyway.
 			}
-		} while (persistent && !fatalError);
+		}
+		Metrics.stop();
+		docFetcher.close();
+		if (docFetcher.getCache() != null) {
+			logger.info("Document cache: " + docFetcher.getCache());
+		}
+		if (stixWriter != null) {
+			try {
+				stixWriter.close();
+			} catch (IOException e) {
+				logger.error("Could not write stix xml file: ", e);
+			}
+		}
 		try {
 			consumer.close();
 		} catch (IOException e) {
@@ -344,252 +371,704 @@ public class StructuredTransformer {
 		}
 	}
 	
+	/**
+	 * @return the next message, or null if there is none
+	 */
+	private GetResponse fetchMessage() throws IOException {
+		BackpressureController.Admission admission = (backpressure != null) ? backpressure.admit(BACKPRESSURE_WAIT, TimeUnit.MILLISECONDS) : BackpressureController.Admission.OPEN;
+		if (admission == BackpressureController.Admission.PAUSED) {
+			return null;
+		}
+		long start = System.nanoTime();
+		GetResponse response = (admission == BackpressureController.Admission.PROBE) ? consumer.probeMessage() : consumer.getMessage();
+		if (response != null) {
+			Metrics.record(Metrics.QUEUE_FETCH, response.getEnvelope().getRoutingKey().toLowerCase(), start);
+			if (backpressure != null) {
+				backpressure.received(response.getEnvelope().getDeliveryTag(), (response.getBody() == null) ? 0 : response.getBody().length);
+			}
+		}
+		return response;
+	}
 	
 	/**
-	 * @param routingKey determines which extractor to use
-	 * @param content the text to parse
-	 * @param metaDataMap any additional required info, which is not included in the content
-	 * @param docIDs if the content is from the document server, this is its id(s).  Only included for debugging output.
-	 * @return
+	 * Starts fetching the document of a message on the BlockingIO threads, so that it is there by
+	 * the time a worker takes the message.
+	 * @return the fetch, or null if there is no BlockingIO or nothing to fetch
 	 */
-	private JSONObject generateGraph(String routingKey, String content, Map<String, String> metaDataMap, String docIDs) {
-		boolean stixDocument = false;
-		STIXPackage stixPackage = null;
-		JSONObject graph = null;
+	private Future<String> prefetchDocument(GetResponse response) {
+		if ((io == null) || (response.getBody() == null)) {
+			return null;
+		}
+		Map<String, Object> headerMap = response.getProps().getHeaders();
+		if ((headerMap != null) && Boolean.valueOf(String.valueOf(headerMap.get("HasContent")))) {
+			return null;
+		}
+		String routingKey = response.getEnvelope().getRoutingKey().toLowerCase();
+		ExtractorFactory factory = extractors.lookup(routingKey);
+		if ((factory != null) && factory.isDocumentGroup()) {
+			return null;
+		}
+		if ((fingerprints != null) && fingerprints.contains(FingerprintStore.fingerprint(routingKey, response.getBody()))) {
+			return null;
+		}
+		return docFetcher.prefetchDocument(new String(response.getBody(), UTF_8).trim(), routingKey);
+	}
+	
+	/**
+	 * Extracts, aligns and acks a single message.  Called on the run() thread, or on a worker thread
+	 * when a worker pool or lanes are configured.
+	 * @param prefetched the message's document, if prefetchDocument() started fetching it
+	 * @return false if a fatal error occurred
+	 */
+	private boolean processMessage(GetResponse response, Future<String> prefetched) {
+		boolean fatalError = false;
+		long itemStartTime = System.currentTimeMillis();
+		long receivedNanos = System.nanoTime();
+		String routingKey = response.getEnvelope().getRoutingKey().toLowerCase();
+		long deliveryTag = response.getEnvelope().getDeliveryTag();
+		
+		String message = "";
+		if (response.getBody() != null) {
+			message = new String(response.getBody(), UTF_8);
+			
+			long timestamp = System.currentTimeMillis();
+			if (response.getProps().getTimestamp() != null) {
+				timestamp = response.getProps().getTimestamp().getTime();
+			}
 
-		try {
-			if (routingKey.endsWith(".argus")) {
-				ArgusGraphExtractor extractor = new ArgusGraphExtractor(argusHeaders, content);
-				return extractor.getGraph();
-			} else if (routingKey.endsWith(".http")) {
-				//TODO: find name of http file ... for now (for testing) it just has .http extencion
-				HTTPDataGraphExtractor httpExtractor = new HTTPDataGraphExtractor(content);
-				return httpExtractor.getGraph();
-			} else if (routingKey.endsWith(".httpr")) {
-				//TODO: find name of http file ... for now (for testing) it just has .http extencion
-				HTTPRDataGraphExtractor httprExtractor = new HTTPRDataGraphExtractor(content);
-				return httprExtractor.getGraph();
-			} else if (routingKey.endsWith(".situ")) {
-				SituGraphExtractor situExtractor = new SituGraphExtractor(content);
-				return situExtractor.getGraph();
-			} else if (routingKey.endsWith(".sno")) {
-				SnoGraphExtractor snoExtractor = new SnoGraphExtractor(content);
-				return snoExtractor.getGraph();
-			} else if (routingKey.endsWith(".dnsrecord")) {
-				DNSRecordGraphExtractor dnsExt = new DNSRecordGraphExtractor(content);
-				return dnsExt.getGraph();
-			} else if (routingKey.endsWith(".serverbanner")) {
-				BannerGraphExtractor bannerExt = new BannerGraphExtractor(content);
-				return bannerExt.getGraph();
-			} else if (routingKey.endsWith(".stix")) {
-				stixDocument = true;
-			} else {
-				//If not already stix, and not using a graph extractor, then generateSTIX will handle it (if a known msg type)
-				stixPackage = generateSTIX(routingKey, content, metaDataMap, docIDs);
-				//logger.warn("Unexpected routing key encountered '" + routingKey + "'.");
+			boolean contentIncluded = false;
+			Map<String, Object> headerMap = response.getProps().getHeaders();
+			if ((headerMap != null) && (headerMap.containsKey("HasContent"))) {
+				contentIncluded = Boolean.valueOf(String.valueOf(headerMap.get("HasContent")));
 			}
+			
+			logger.debug("Recieved: " + routingKey + " deliveryTag=[" + deliveryTag + "] message- "+ message);
+			
+			//Skip messages that were already processed, whether redelivered or sent again
+			if (fingerprints != null) {
+				long fingerprint = FingerprintStore.fingerprint(routingKey, response.getBody());
+				if (fingerprints.contains(fingerprint)) {
+					logger.debug("Already processed: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
+					Metrics.increment(Metrics.DUPLICATE_MESSAGES, routingKey);
+					return ack(routingKey, deliveryTag, receivedNanos);
+				}
+				pendingFingerprints.put(deliveryTag, fingerprint);
+			}
+		
+			//Get the document from the document server, if necessary
+			String content = message;
+			ExtractorFactory factory = extractors.lookup(routingKey);
+			if (!contentIncluded && ((factory == null) || !factory.isDocumentGroup())) {
+				String docId = content.trim();
+				logger.debug("Retrieving document content from Document-Service for id '" + docId + "'.");
 
-			if (stixPackage != null) {
-				Map<String, Vertex> stixElements = preprocessSTIX.normalizeSTIX(stixPackage.toXMLString());
-				graph = constructGraph.constructGraph(stixElements);
-			} else if (stixDocument) {
-				Map<String, Vertex> stixElements = preprocessSTIX.normalizeSTIX(content);
-				graph = constructGraph.constructGraph(stixElements);
+				long fetchStart = System.nanoTime();
+				try {
+					if (prefetched != null) {
+						content = DocumentFetcher.await(prefetched);
+					} else {
+						content = docFetcher.fetchDocument(docId);
+						Metrics.record(Metrics.DOC_FETCH, routingKey, fetchStart);
+					}
+					if ((backpressure != null) && (content != null)) {
+						//two bytes a char
+						backpressure.addBytes(deliveryTag, 2L * content.length());
+					}
+				} catch (DocServiceException e) {
+					logger.error("Could not fetch document '" + docId + "' from Document-Service.", e);
+					logger.error("Message content was:\n"+message);
+					forgetFingerprint(deliveryTag);
+				} catch (Exception e) {
+					logger.error("Other error in handling document '" + docId + "' from Document-Service.", e);
+					logger.error("Message content was:\n"+message);
+					forgetFingerprint(deliveryTag);
+				}
+			}
+			
+			//get a few other things from the message before passing to extractors.
+			String docIDs = null;
+			if (!contentIncluded) docIDs = message;
+			Map<String, String> metaDataMap = null;
+			if ((headerMap != null) && (headerMap.containsKey(HOSTNAME_KEY))) {
+				// The extractor needs Map<String,String>, and the headerMap is Map<String,Object>.
+				// Also, the original headerMap may contain things that extractors don't care about.
+				metaDataMap = new HashMap<String, String>();
+				String hostname = String.valueOf(headerMap.get(HOSTNAME_KEY));
+				metaDataMap.put(HOSTNAME_KEY, hostname);
+			}
+			
+			if ((factory instanceof ChunkedExtractorFactory) && (chunkSize > 0) && (content.length() > chunkSize)) {
+				//large documents are extracted and aligned a chunk at a time
+				String checkpointKey = getCheckpointKey(routingKey, docIDs, response.getProps().getMessageId(), content);
+				fatalError = !processChunks((ChunkedExtractorFactory) factory, routingKey, deliveryTag, receivedNanos, timestamp, content, metaDataMap, docIDs, checkpointKey);
 			} else {
-				logger.warn("Unexpected null stix package for routing key '" + routingKey + "'.");
+				//Parse the structured data once, both outputs share the result
+				Extraction extraction = null;
+				JSONObject graph = null;
+				AckOnLoad pending = new AckOnLoad(routingKey, deliveryTag, docIDs, receivedNanos);
+				if (outputToDB || outputToSTIXFile) {
+					extraction = extract(routingKey, deliveryTag, content, metaDataMap, docIDs);
+				}
+			
+				if(outputToDB){
+					//Construct the subgraph from the extracted data
+					graph = generateGraph(extraction, routingKey, content, docIDs);
+
+					//TODO: Add timestamp into subgraph
+					//Merge subgraph into full knowledge graph, the message is acked once its batch is loaded
+					if ((graph != null) && !align(routingKey, graph, pending.aligning())) {
+						pending.partDone();
+					}
+				}
+
+				if(outputToSTIXFile){
+					//Output STIX content to file.
+					if (((extraction == null) || (extraction.getStixPackage() == null)) && !outputToDB) {
+						//not from a stix extractor, so the source documents of the graph are written instead
+						graph = generateGraph(extraction, routingKey, content, docIDs);
+					}
+					fatalError |= !writeSTIX(routingKey, timestamp, extraction, graph, pending.expect());
+				}
+
+				//Ack the message was processed and can be discarded from the queue, once its subgraph is loaded and its output written
+				pending.partDone();
 			}
-		} catch (RuntimeException e) {
-			logger.error("Error occurred with routingKey = " + routingKey);
-			logger.error("										docIDs = " + docIDs);
-			logger.error("										content = " + content);
-			e.printStackTrace();
+		}
+		else {
+			fatalError = !retry(routingKey, deliveryTag);
+		}
+		
+		long itemEndTime = System.currentTimeMillis();
+		logger.debug( "Finished processing item in " + (itemEndTime - itemStartTime) + " ms. " +
+				" routingKey: " + routingKey + " deliveryTag: " + deliveryTag + " message: " + message);
+	
+		return !fatalError;
+	}
+	
+	/**
+	 * Messages with the same partition key are processed in the order they were received.
+	 */
+	private String getPartitionKey(GetResponse response) {
+		if (PARTITION_NONE.equalsIgnoreCase(partitionKey)) {
 			return null;
 		}
-
-		return graph;
+		if (PARTITION_ROUTING_KEY.equalsIgnoreCase(partitionKey)) {
+			return response.getEnvelope().getRoutingKey().toLowerCase();
+		}
+		Map<String, Object> headerMap = response.getProps().getHeaders();
+		if ((headerMap != null) && (headerMap.get(partitionKey) != null)) {
+			return String.valueOf(headerMap.get(partitionKey));
+		}
+		//fall back to the routing key, so messages without the header still keep their order
+		return response.getEnvelope().getRoutingKey().toLowerCase();
 	}
 	
 	/**
-	 * @param routingKey determines which extractor to use
-	 * @param content the text to parse
-	 * @param metaDataMap any additional required info, which is not included in the content
-	 * @param docIDs if the content is from the document server, this is its id(s).  Only included for debugging output.
-	 * @return
+	 * @param receivedNanos System.nanoTime() when processing of the message started
 	 */
-	private STIXPackage generateSTIX(String routingKey, String content, Map<String, String> metaDataMap, String docIDs) {
-		boolean stixDocument = false;
-		STIXPackage stixPackage = null;
-		JSONObject graph = null;
-		
+	private boolean ack(String routingKey, long deliveryTag, long receivedNanos) {
+		long start = System.nanoTime();
 		try {
-			if (routingKey.endsWith(".cve")) {
-				CveExtractor cveExtractor = new CveExtractor(content);
-				stixPackage = cveExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".nvd")) {
-				NvdToStixExtractor nvdExt = new NvdToStixExtractor(content);
-				stixPackage = nvdExt.getStixPackage();
-			} else if (routingKey.endsWith(".cpe")) {
-				CpeExtractor cpeExtractor = new CpeExtractor(content);
-				stixPackage = cpeExtractor.getStixPackage(); 
-			} else if (routingKey.endsWith(".maxmind")) {
-				GeoIPExtractor geoIPExtractor = new GeoIPExtractor(content);
-				stixPackage = geoIPExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".metasploit")) {
-				MetasploitExtractor metasploitExtractor = new MetasploitExtractor(content);
-				stixPackage = metasploitExtractor.getStixPackage();
-			} else if (routingKey.replaceAll("\\-", "").endsWith(".cleanmx")) {
-				CleanMxVirusExtractor virusExtractor = new CleanMxVirusExtractor(content);
-				stixPackage = virusExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".login_events")) {
-				LoginEventExtractor loginEventExtractor = new LoginEventExtractor(content);
-				stixPackage = loginEventExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".installed_package")) {
-				PackageListExtractor packageListExtractor = new PackageListExtractor(content);
-				stixPackage = packageListExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".1d4")){
-				CIF1d4Extractor cifExtractor = new CIF1d4Extractor(content);
-				stixPackage = cifExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".zeustracker")) {
-				CIFZeusTrackerExtractor cifExtractor = new CIFZeusTrackerExtractor(content);
-				stixPackage = cifExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".emergingthreats")) {
-				CIFEmergingThreatsExtractor cifExtractor = new CIFEmergingThreatsExtractor(content);
-				stixPackage = cifExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".servicelist")) {
-				ServiceListExtractor serviceListExtractor = new ServiceListExtractor(content);
-				stixPackage = serviceListExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".clientbanner")) {
-				ClientBannerExtractor clientBannerExtractor = new ClientBannerExtractor(content);
-				stixPackage = clientBannerExtractor.getStixPackage();
-			} else if (routingKey.replaceAll("\\-", "").endsWith(".fsecure")) {
-				FSecureExtractor fSecureExt = new FSecureExtractor(content);
-				stixPackage = fSecureExt.getStixPackage();
-			} else if (routingKey.endsWith(".malwaredomainlist")) {
-				MalwareDomainListExtractor mdlExt = new MalwareDomainListExtractor(content);
-				stixPackage = mdlExt.getStixPackage();
-			} else if (routingKey.endsWith(".hone")) {
-				HoneExtractor honeExtractor = null;
-				if ((metaDataMap != null) && (metaDataMap.containsKey(HOSTNAME_KEY))) {
-					honeExtractor = new HoneExtractor(content, metaDataMap.get(HOSTNAME_KEY));
-				} else {
-					honeExtractor = new HoneExtractor(content);
+			logger.debug("Acking: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
+			consumer.messageProcessed(deliveryTag);
+		} catch (IOException e) {
+			logger.error("Encountered RabbitMQ IO error:", e);
+			return false;
+		}
+		Metrics.record(Metrics.ACK, routingKey, start);
+		Metrics.record(Metrics.TOTAL, routingKey, receivedNanos);
+		Long fingerprint = pendingFingerprints.remove(deliveryTag);
+		if (fingerprint != null) {
+			fingerprints.add(fingerprint);
+		}
+		if (backpressure != null) {
+			backpressure.finished(deliveryTag);
+		}
+		return true;
+	}
+	
+	/**
+	 * Requeues a message, so that it is redelivered and processed again.
+	 * @return false if the message could not be requeued
+	 */
+	private boolean retry(String routingKey, long deliveryTag) {
+		try {
+			consumer.retryMessage(deliveryTag);
+			logger.debug("Retrying: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
+		} catch (IOException e) {
+			logger.error("Encountered RabbitMQ IO error:", e);
+			return false;
+		}
+		if (backpressure != null) {
+			backpressure.finished(deliveryTag);
+		}
+		return true;
+	}
+	
+	/**
+	 * Feeds the time a subgraph took to load, or fail to, into backpressure.
+	 */
+	private void alignmentDone(long addedNanos) {
+		if (backpressure != null) {
+			backpressure.alignmentLatency(addedNanos);
+		}
+	}
+	
+	/**
+	 * Keeps a message that could not be processed fully from being skipped when it is sent again.
+	 */
+	private void forgetFingerprint(long deliveryTag) {
+		pendingFingerprints.remove(deliveryTag);
+	}
+	
+	/**
+	 * Extracts and outputs a large document a chunk at a time, so that neither the extractor nor
+	 * alignment has to hold the graph of the whole document at once.  The message is acked once the
+	 * subgraphs of all its chunks are loaded.  With a checkpoint store, chunks that were already
+	 * done before a restart are skipped.
+	 * @return false if a fatal error occurred
+	 */
+	private boolean processChunks(ChunkedExtractorFactory factory, String routingKey, long deliveryTag, long receivedNanos, long timestamp, String content, Map<String, String> metaDataMap, String docIDs, String checkpointKey) {
+		boolean fatalError = false;
+		int skipped = 0;
+		if (checkpointStore != null) {
+			skipped = checkpointStore.getCompleted(checkpointKey, chunkSize);
+			if (skipped > 0) {
+				logger.info("Resuming " + routingKey + " deliveryTag=[" + deliveryTag + "] after chunk " + skipped + ".");
+			}
+		}
+		ChunkedMessage chunkedMessage = new ChunkedMessage(routingKey, deliveryTag, receivedNanos, docIDs, (checkpointStore == null) ? null : checkpointKey, skipped);
+		ContentChunker chunker = factory.createChunker(content, chunkSize);
+		int chunks = 0;
+		try {
+			String chunk;
+			while ((chunk = chunker.nextChunk()) != null) {
+				int index = chunks++;
+				if (index < skipped) {
+					continue;
 				}
-				stixPackage = honeExtractor.getStixPackage();
-			} else if (routingKey.endsWith(".caida")) {
-				//TODO: ensure file names match 
-				String as2org = null;
-				String pfx2as = null;
-				String[] items = content.split("\\r?\\n");
-				for (String item : items) {
-					String docId = item.split("\\s+")[0];
-					String sourceURL = item.split("\\s+")[1];
-					String rawItemContent = null;
-					String itemContent = null;
-					try {
-						DocumentObject document = docClient.fetch(docId);
-						rawItemContent = document.getDataAsString();
-						JSONObject jsonContent = new JSONObject(rawItemContent);
-						itemContent = (String) jsonContent.get("document"); 
-					} catch (DocServiceException e) {
-						logger.error("Could not fetch document '" + docId + "' from Document-Service. URL was: " + sourceURL, e);
-						logger.error("Complete message content was:\n" + content);
-						return null;
+				chunkedMessage.expect(index);
+				if (outputToDB || outputToSTIXFile) {
+					Extraction extraction = extract(routingKey, deliveryTag, chunk, metaDataMap, docIDs);
+					JSONObject graph = generateGraph(extraction, routingKey, chunk, docIDs);
+					if (outputToDB && (graph != null) && !align(routingKey, graph, chunkedMessage.chunkListener(index))) {
+						chunkedMessage.partDone(index);
 					}
-					if (sourceURL.contains("as2org")) {
-						as2org = itemContent;
-					} else if (sourceURL.contains("pfx2as")) {
-						pfx2as = itemContent;
-					} else {
-						logger.warn("unexpected URL (sophos) " + sourceURL);
+					if (outputToSTIXFile) {
+						fatalError |= !writeSTIX(routingKey, timestamp, extraction, graph, chunkedMessage.outputListener(index));
 					}
 				}
-				if (as2org != null && pfx2as != null) {
-					CaidaExtractor caidaExtractor = new CaidaExtractor(as2org, pfx2as);
-					stixPackage = caidaExtractor.getStixPackage();
+				chunkedMessage.partDone(index);
+			}
+		} catch (IOException e) {
+			//not expected when reading from a string
+			logger.error("Could not read content of " + routingKey + " deliveryTag=[" + deliveryTag + "]", e);
+		}
+		logger.debug("Extracted " + routingKey + " deliveryTag=[" + deliveryTag + "] in " + chunks + " chunks.");
+		chunkedMessage.allChunksAdded(chunks);
+		return !fatalError;
+	}
+	
+	/**
+	 * @return a name for the message that stays the same when it is redelivered
+	 */
+	private static String getCheckpointKey(String routingKey, String docIDs, String messageId, String content) {
+		if (docIDs != null) {
+			return routingKey + " " + docIDs.trim();
+		}
+		if (messageId != null) {
+			return routingKey + " id:" + messageId;
+		}
+		return routingKey + " hash:" + content.length() + "-" + Integer.toHexString(content.hashCode());
+	}
+	
+	/**
+	 * Hands a subgraph to alignment, minus the vertices and edges that were loaded within the
+	 * dedup TTL.
+	 * @return false if nothing was left to load, in which case listener is not told anything
+	 */
+	private boolean align(String routingKey, JSONObject graph, AlignmentBatcher.Listener listener) {
+		if (deduplicator == null) {
+			alignmentBatcher.add(graph, listener);
+			return true;
+		}
+		SubgraphDeduplicator.Result result = deduplicator.filter(graph);
+		if (result.graph == null) {
+			Metrics.increment(Metrics.DUPLICATE_SUBGRAPHS, routingKey);
+			return false;
+		}
+		alignmentBatcher.add(result.graph, deduplicator.listener(result, listener));
+		return true;
+	}
+	
+	/**
+	 * Writes the extracted STIX package to the STIX output, or if the extractor did not produce one,
+	 * the source documents of the graph.
+	 * @param listener told once the output is written out to the file
+	 * @return false if the output could not be written
+	 */
+	private boolean writeSTIX(String routingKey, long timestamp, Extraction extraction, JSONObject graph, STIXOutput.Listener listener) {
+		try {
+			if ((extraction != null) && (extraction.getStixPackage() != null)) {
+				STIXPackage stixPackage = extraction.getStixPackage();
+				String packageId = (stixPackage.getId() == null) ? null : stixPackage.getId().toString();
+				stixWriter.write(routingKey, packageId, timestamp, stixPackage);
+			} else {
+				String stixContent = getSourceDocuments(graph);
+				if (stixContent != null) {
+					stixWriter.write(routingKey, null, timestamp, stixContent);
 				}
-			} else if (routingKey.endsWith(".sophos")) {
-				String summary = null;
-				String details = null;
-				String[] items = content.split("\\r?\\n");
-				for (String item : items) {
-					String docId = item.split("\\s+")[0];
-					String sourceURL = item.split("\\s+")[1];
-					String rawItemContent = null;
-					String itemContent = null;
-					try {
-						DocumentObject document = docClient.fetch(docId);
-						rawItemContent = document.getDataAsString();
-						JSONObject jsonContent = new JSONObject(rawItemContent);
-						itemContent = (String) jsonContent.get("document"); 
-					} catch (DocServiceException e) {
-						logger.error("Could not fetch document '" + docId + "' from Document-Service. URL was: " + sourceURL, e);
-						logger.error("Complete message content was:\n" + content);
-						return null;
-					}
-					if (sourceURL.contains("/detailed-analysis.aspx")) {
-						details = itemContent;
-					} else if(sourceURL.contains(".aspx")) {
-						summary = itemContent;
-					} else {
-						logger.warn("unexpected URL (sophos) " + sourceURL);
-					}
+			}
+			stixWriter.whenWritten(listener);
+		} catch (IOException e) {
+			logger.error("Could not write stix xml file: ", e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the source documents of the vertices of a graph, one per line, or null if it has no vertices
+	 */
+	private static String getSourceDocuments(JSONObject graph) {
+		JSONObject vertices = (graph == null) ? null : graph.optJSONObject("vertices");
+		if (vertices == null) {
+			return null;
+		}
+		StringBuilder str = new StringBuilder();
+		for (String id : (Set<String>) vertices.keySet()) {
+			str.append(vertices.getJSONObject(id).getString("sourceDocument"));
+			str.append("\n");
+		}
+		return str.toString();
+	}
+	
+	/**
+	 * Tracks the chunks of one message as their subgraphs are loaded and their output written.  A
+	 * chunk is done once all of its parts are.  Progress is checkpointed up to the first chunk that
+	 * isn't done yet, and the message is acked once every chunk is done.  If a chunk fails to load,
+	 * the checkpoint stays before it and the message is requeued once the other chunks are through,
+	 * so the failed chunk and those after it are extracted and loaded again.
+	 */
+	private class ChunkedMessage {
+		private final String routingKey;
+		private final long deliveryTag;
+		private final long receivedNanos;
+		private final String docIDs;
+		private final String checkpointKey;
+		private final BitSet done = new BitSet();
+		//chunks whose load failed, and of those, the ones that are through
+		private final BitSet loadFailed = new BitSet();
+		private final BitSet failed = new BitSet();
+		private boolean finished;
+		//parts of each chunk still to finish, plus one until the chunk was handed over
+		private final Map<Integer, Integer> partsLeft = new HashMap<Integer, Integer>();
+		//chunks done, without any gaps
+		private int completed;
+		//total number of chunks, -1 until all have been added
+		private int chunks = -1;
+		
+		/**
+		 * @param checkpointKey where progress is checkpointed, or null for no checkpoints
+		 * @param skipped chunks that were already done
+		 */
+		public ChunkedMessage(String routingKey, long deliveryTag, long receivedNanos, String docIDs, String checkpointKey, int skipped) {
+			this.routingKey = routingKey;
+			this.deliveryTag = deliveryTag;
+			this.receivedNanos = receivedNanos;
+			this.docIDs = docIDs;
+			this.checkpointKey = checkpointKey;
+			this.completed = skipped;
+			done.set(0, skipped);
+		}
+		
+		public AlignmentBatcher.Listener chunkListener(final int index) {
+			final long addedNanos = System.nanoTime();
+			expect(index);
+			return new AlignmentBatcher.Listener() {
+				@Override
+				public void committed() {
+					Metrics.record(Metrics.ALIGN, routingKey, addedNanos);
+					alignmentDone(addedNanos);
+					partDone(index);
 				}
-				if (summary != null && details != null) {
-					SophosExtractor sophosExt = new SophosExtractor(summary, details);
-					stixPackage = sophosExt.getStixPackage();
-				} else {
-					logger.warn("Sophos: some required fields were null, skipping group.\nMessage was:" + content);
+				
+				@Override
+				public void failed(RuntimeException e) {
+					logger.error("Error occurred loading chunk " + index + " with routingKey = " + routingKey);
+					logger.error("										docIDs = " + docIDs);
+					e.printStackTrace();
+					forgetFingerprint(deliveryTag);
+					alignmentDone(addedNanos);
+					partFailed(index);
+				}
+			};
+		}
+		
+		public STIXOutput.Listener outputListener(final int index) {
+			expect(index);
+			return new STIXOutput.Listener() {
+				@Override
+				public void written() {
+					partDone(index);
 				}
-			} else if (routingKey.endsWith(".bugtraq")) {
-				String info = null;
-				String discussion = null;
-				String exploit = null;
-				String solution = null;
-				String references = null;
-				String[] items = content.split("\\r?\\n");
-				for (String item : items) {
-					String docId = item.split("\\s+")[0];
-					String sourceURL = item.split("\\s+")[1];
-					String rawItemContent = null;
-					String itemContent = null;
+				
+				@Override
+				public void failed(IOException e) {
+					//left unacked, so it is redelivered
+					logger.error("Could not write stix output of chunk " + index + " of " + routingKey + " deliveryTag=[" + deliveryTag + "]", e);
+					workerFailed = true;
+				}
+			};
+		}
+		
+		public synchronized void expect(int index) {
+			Integer left = partsLeft.get(index);
+			partsLeft.put(index, (left == null) ? 1 : left + 1);
+		}
+		
+		public synchronized void partDone(int index) {
+			int left = partsLeft.get(index) - 1;
+			if (left > 0) {
+				partsLeft.put(index, left);
+			} else if (loadFailed.get(index)) {
+				partsLeft.remove(index);
+				failed.set(index);
+				checkFinished();
+			} else {
+				partsLeft.remove(index);
+				chunkDone(index);
+			}
+		}
+		
+		public synchronized void partFailed(int index) {
+			loadFailed.set(index);
+			partDone(index);
+		}
+		
+		private void chunkDone(int index) {
+			done.set(index);
+			int next = done.nextClearBit(completed);
+			if (next > completed) {
+				completed = next;
+				if ((checkpointKey != null) && ((chunks < 0) || (completed < chunks))) {
 					try {
-						DocumentObject document = docClient.fetch(docId);
-						rawItemContent = document.getDataAsString();
-						JSONObject jsonContent = new JSONObject(rawItemContent);
-						itemContent = (String) jsonContent.get("document");
-					} catch (DocServiceException e) {
-						logger.error("Could not fetch document '" + docId + "' from Document-Service. URL was: " + sourceURL, e);
-						logger.error("Complete message content was:\n" + content);
-						return null;
-					}
-					if (sourceURL.contains("/info")) {
-						info = itemContent;
-					} else if (sourceURL.contains("/discuss")) { //interestingly, "/discuss" and "/discussion" are both valid urls for this item
-						discussion = itemContent;
-					} else if (sourceURL.contains("/exploit")) {
-						exploit = itemContent;
-					} else if (sourceURL.contains("/solution")) {
-						solution = itemContent;
-					} else if (sourceURL.contains("/references")) {
-						references = itemContent;
-					} else {
-						logger.warn("unexpected URL (bugtraq) " + sourceURL); 
+						checkpointStore.setCompleted(checkpointKey, chunkSize, completed);
+					} catch (IOException e) {
+						logger.warn("Could not checkpoint " + routingKey + " deliveryTag=[" + deliveryTag + "]", e);
 					}
 				}
-				if (info != null && discussion != null && exploit != null && solution != null && references != null) {
-					BugtraqExtractor bugtraqExt = new BugtraqExtractor(info, discussion, exploit, solution, references);
-					stixPackage = bugtraqExt.getStixPackage();
-				} else {
-					logger.warn("Bugtraq: some required fields were null, skipping group.\nMessage was:" + content);
-					if (docIDs != null) {
-						logger.error("Problem docid(s):\n" + docIDs);
-					}
+			}
+			checkFinished();
+		}
+		
+		public synchronized void allChunksAdded(int chunks) {
+			this.chunks = chunks;
+			checkFinished();
+		}
+		
+		private void checkFinished() {
+			if ((chunks < 0) || finished) {
+				return;
+			}
+			if (!failed.isEmpty()) {
+				if (done.cardinality() + failed.cardinality() < chunks) {
+					return;
+				}
+				//the checkpoint is kept, so only the failed chunk and the chunks after it run again
+				finished = true;
+				logger.warn("Requeueing " + routingKey + " deliveryTag=[" + deliveryTag + "], chunk " + failed.nextSetBit(0) + " could not be loaded.");
+				if (!retry(routingKey, deliveryTag)) {
+					workerFailed = true;
+				}
+				return;
+			}
+			if (completed < chunks) {
+				return;
+			}
+			finished = true;
+			if (checkpointKey != null) {
+				try {
+					checkpointStore.remove(checkpointKey);
+				} catch (IOException e) {
+					logger.warn("Could not remove checkpoint of " + routingKey + " deliveryTag=[" + deliveryTag + "]", e);
 				}
+			}
+			if (!ack(routingKey, deliveryTag, receivedNanos)) {
+				workerFailed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Acks a message once its subgraph has been merged into the knowledge graph and its STIX output
+	 * written out to the file.  If the subgraph could not be loaded the message is requeued instead,
+	 * so that it is loaded again once the database is back.
+	 */
+	private class AckOnLoad implements AlignmentBatcher.Listener, STIXOutput.Listener {
+		private final String routingKey;
+		private final long deliveryTag;
+		private final String docIDs;
+		private final long receivedNanos;
+		private long addedNanos;
+		//parts still to finish, plus one until everything was handed over
+		private final AtomicInteger partsLeft = new AtomicInteger(1);
+		private volatile boolean loadFailed;
+		
+		public AckOnLoad(String routingKey, long deliveryTag, String docIDs, long receivedNanos) {
+			this.routingKey = routingKey;
+			this.deliveryTag = deliveryTag;
+			this.docIDs = docIDs;
+			this.receivedNanos = receivedNanos;
+		}
+		
+		/**
+		 * Called before handing the message's subgraph to alignment.
+		 */
+		public AckOnLoad aligning() {
+			addedNanos = System.nanoTime();
+			return expect();
+		}
+		
+		/**
+		 * Called before handing a part of the message's work to something that tells this when done.
+		 */
+		public AckOnLoad expect() {
+			partsLeft.incrementAndGet();
+			return this;
+		}
+		
+		public void partDone() {
+			if (partsLeft.decrementAndGet() == 0) {
+				ackLoaded();
+			}
+		}
+		
+		@Override
+		public void committed() {
+			Metrics.record(Metrics.ALIGN, routingKey, addedNanos);
+			alignmentDone(addedNanos);
+			partDone();
+		}
+		
+		@Override
+		public void written() {
+			partDone();
+		}
+		
+		@Override
+		public void failed(IOException e) {
+			//left unacked, so it is redelivered
+			logger.error("Could not write stix output of " + routingKey + " deliveryTag=[" + deliveryTag + "]", e);
+			workerFailed = true;
+		}
+		
+		@Override
+		public void failed(RuntimeException e) {
+			logger.error("Error occurred loading subgraph with routingKey = " + routingKey);
+			logger.error("										docIDs = " + docIDs);
+			e.printStackTrace();
+			forgetFingerprint(deliveryTag);
+			alignmentDone(addedNanos);
+			loadFailed = true;
+			partDone();
+		}
+		
+		private void ackLoaded() {
+			boolean done = loadFailed ? retry(routingKey, deliveryTag) : ack(routingKey, deliveryTag, receivedNanos);
+			if (!done) {
+				workerFailed = true;
+			}
+		}
+	}
+	
+	private class MessageTask implements Runnable {
+		private final GetResponse response;
+		private final Future<String> prefetched;
+		
+		public MessageTask(GetResponse response, Future<String> prefetched) {
+			this.response = response;
+			this.prefetched = prefetched;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (!processMessage(response, prefetched)) {
+					workerFailed = true;
+				}
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error processing deliveryTag=[" + response.getEnvelope().getDeliveryTag() + "]", e);
+				workerFailed = true;
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param routingKey determines which extractor to use
+	 * @param deliveryTag the message, whose fingerprint is forgotten if its documents can't be fetched
+	 * @param content the text to parse
+	 * @param metaDataMap any additional required info, which is not included in the content
+	 * @param docIDs if the content is from the document server, this is its id(s).  Only included for debugging output.
+	 * @return the extractor output, or null if the routing key is unknown or extraction failed
+	 */
+	private Extraction extract(String routingKey, long deliveryTag, String content, Map<String, String> metaDataMap, String docIDs) {
+		ExtractorFactory factory = extractors.lookup(routingKey);
+		if (factory == null) {
+			logger.warn("Unexpected routing key encountered '" + routingKey + "'.");
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			Extraction extraction = factory.extract(content, metaDataMap);
+			Metrics.record(Metrics.EXTRACT, routingKey, start);
+			return extraction;
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof DocServiceException) {
+				//document groups are fetched by their extractors
+				logger.error("Could not fetch documents '" + docIDs + "' from Document-Service.", e.getCause());
+				logger.error("Message content was:\n" + content);
+				forgetFingerprint(deliveryTag);
+				return null;
+			}
+			logger.error("Error occurred with routingKey = " + routingKey);
+			logger.error("										docIDs = " + docIDs);
+			logger.error("										content = " + content);
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * @param extraction the extractor output for the message, may be null
+	 * @param routingKey the routing key of the message.  Only included for debugging output.
+	 * @param content the text that was parsed.  Only included for debugging output.
+	 * @param docIDs if the content is from the document server, this is its id(s).  Only included for debugging output.
+	 * @return the subgraph for the extracted content, or null if there is none
+	 */
+	private JSONObject generateGraph(Extraction extraction, String routingKey, String content, String docIDs) {
+		if (extraction == null) {
+			logger.warn("Unexpected null stix package for routing key '" + routingKey + "'.");
+			return null;
+		}
+		if (extraction.getGraph() != null) {
+			return extraction.getGraph();
+		}
+
+		JSONObject graph = null;
+		try {
+			Map<String, Vertex> stixElements;
+			long start = System.nanoTime();
+			if (extraction.getStixPackage() != null) {
+				stixElements = stixNormalizer.get().normalize(extraction.getStixPackage());
 			} else {
-				logger.warn("Unexpected routing key encountered '" + routingKey + "'.\n"
-						+ "\t(If running with 'outputToSTIXFile: true', this source "
-						+ "may be using a 'graph extractor' instead of a 'stix extractor'/)");
+				stixElements = stixNormalizer.get().normalize(extraction.getStixDocument());
 			}
+			Metrics.record(Metrics.NORMALIZE, routingKey, start);
+			start = System.nanoTime();
+			graph = constructGraph.get().constructGraph(stixElements);
+			Metrics.record(Metrics.GRAPH, routingKey, start);
 		} catch (RuntimeException e) {
 			logger.error("Error occurred with routingKey = " + routingKey);
 			logger.error("										docIDs = " + docIDs);
@@ -598,7 +1077,7 @@ public class StructuredTransformer {
 			return null;
 		}
 
-		return stixPackage;
+		return graph;
 	}
  
 	/**
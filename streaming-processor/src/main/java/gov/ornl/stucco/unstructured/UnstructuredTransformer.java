@@ -2,21 +2,39 @@ package gov.ornl.stucco.unstructured;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.stanford.nlp.pipeline.Annotation;
+import gov.ornl.stucco.BackpressureController;
+import gov.ornl.stucco.BlockingIO;
 import gov.ornl.stucco.ConfigLoader;
+import gov.ornl.stucco.DocumentCache;
+import gov.ornl.stucco.DocumentFetcher;
+import gov.ornl.stucco.FingerprintStore;
+import gov.ornl.stucco.IdleStrategy;
+import gov.ornl.stucco.ModelPool;
 import gov.ornl.stucco.RabbitMQConsumer; 
 import gov.ornl.stucco.RelationExtractor;
+import gov.ornl.stucco.STIXNormalizer;
+import gov.ornl.stucco.SubgraphDeduplicator;
 import gov.ornl.stucco.entity.EntityLabeler;
-import gov.ornl.stucco.structured.StructuredTransformer;
+import gov.ornl.stucco.metrics.Metrics;
 import gov.pnnl.stucco.doc_service_client.DocServiceClient;
 import gov.pnnl.stucco.doc_service_client.DocServiceException; 
-import gov.ornl.stucco.preprocessors.PreprocessSTIX;
 import gov.ornl.stucco.preprocessors.PreprocessSTIX.Vertex;
 import gov.ornl.stucco.GraphConstructor;
 import gov.ornl.stucco.AlignFactory;
+import gov.ornl.stucco.AlignmentBatcher;
 import gov.ornl.stucco.Align;
 import gov.ornl.stucco.stix_extractors.StuccoExtractor;
 
@@ -24,7 +42,6 @@ import org.mitre.stix.stix_1.STIXPackage;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory; 
-import org.jdom2.Element;
 
 import com.rabbitmq.client.GetResponse;
 
@@ -33,15 +50,44 @@ public class UnstructuredTransformer {
 	private static final String PROCESS_NAME = "UNSTRUCTURED";
 	
 	private RabbitMQConsumer consumer;
-	private DocServiceClient docClient;
-	private EntityLabeler entityLabeler;
-	private RelationExtractor relationExtractor;
-	private PreprocessSTIX preprocessSTIX;
-	private GraphConstructor constructGraph;
+	private DocumentFetcher docFetcher;
 	private Align alignment;
 	
 	private boolean persistent;
-	private int sleepTime;
+	private IdleStrategy idleStrategy;
+	
+	private boolean pushMode;
+	private int prefetchCount;
+	private int ackBatchSize;
+	private long ackBatchTimeout;
+	private int channels;
+	private List<Map<String, Object>> shardQueues;
+	
+	//fetch (run() thread) -> annotation (annotationThreads) -> alignment and ack (one thread)
+	private int annotationThreads;
+	private int pipelineQueueSize;
+	//entity and relation models, loaded in the background and lent to the annotation threads
+	private int modelInstances;
+	private List<String> modelPrewarmPaths;
+	private ModelPool<AnnotationModels> models;
+	private BlockingQueue<FetchedDocument> annotationQueue;
+	private BlockingQueue<AnnotatedDocument> alignmentQueue;
+	private AtomicInteger runningAnnotators;
+	private Thread[] annotators;
+	private Thread aligner;
+	private int alignBatchSize;
+	private long alignBatchTimeout;
+	private AlignmentBatcher alignmentBatcher;
+	private SubgraphDeduplicator deduplicator;
+	private BlockingIO io;
+	private FingerprintStore fingerprints;
+	private BackpressureController backpressure;
+	//fingerprints of the messages in progress by delivery tag, recorded once a message is done
+	private final ConcurrentMap<Long, Long> pendingFingerprints = new ConcurrentHashMap<Long, Long>();
+	private volatile boolean stageFailed;
+	private static final long STAGE_POLL_TIME = 1000;
+	private static final long BACKPRESSURE_WAIT = 100;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	
 	public UnstructuredTransformer() {
 		logger.info("loading config file from default location");
@@ -56,7 +102,7 @@ public class UnstructuredTransformer {
 	}
 	
 	private void init(ConfigLoader configLoader){
-		Map<String, Object> configMap;
+		Map<String, Object> configMap = null;
 		String exchange = null;
 		String queue = null;
 		String host = null;
@@ -73,7 +119,26 @@ public class UnstructuredTransformer {
 			user = String.valueOf(configMap.get("username"));
 			password = String.valueOf(configMap.get("password"));
 			persistent = Boolean.parseBoolean(String.valueOf(configMap.get("persistent")));
-			sleepTime = Integer.parseInt(String.valueOf(configMap.get("emptyQueueSleepTime")));
+			idleStrategy = new IdleStrategy(ConfigLoader.getLong(configMap, "minIdleSleepTime", 10), 
+					ConfigLoader.getLong(configMap, "maxIdleSleepTime", 1000));
+			pushMode = "push".equalsIgnoreCase(ConfigLoader.getString(configMap, "consumeMode", "pull"));
+			prefetchCount = ConfigLoader.getInt(configMap, "prefetchCount", 100);
+			ackBatchSize = ConfigLoader.getInt(configMap, "ackBatchSize", 1);
+			ackBatchTimeout = ConfigLoader.getLong(configMap, "ackBatchTimeout", 1000);
+			channels = ConfigLoader.getInt(configMap, "channels", 1);
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> shards = (List<Map<String, Object>>) configMap.get("shards");
+			shardQueues = shards;
+			annotationThreads = Math.max(1, ConfigLoader.getInt(configMap, "annotationThreads", 1));
+			pipelineQueueSize = Math.max(1, ConfigLoader.getInt(configMap, "pipelineQueueSize", 2 * annotationThreads));
+			modelInstances = Math.max(1, Math.min(annotationThreads, ConfigLoader.getInt(configMap, "modelInstances", annotationThreads)));
+			@SuppressWarnings("unchecked")
+			List<String> prewarmPaths = (List<String>) configMap.get("modelPrewarmPaths");
+			modelPrewarmPaths = prewarmPaths;
+			alignBatchSize = ConfigLoader.getInt(configMap, "alignBatchSize", 0);
+			alignBatchTimeout = ConfigLoader.getLong(configMap, "alignBatchTimeout", 1000);
+			deduplicator = SubgraphDeduplicator.fromConfig(configMap);
+			fingerprints = FingerprintStore.fromConfig(configMap);
 			@SuppressWarnings("unchecked")
 			List<String> bindings = (List<String>) configMap.get("bindings");
 			bindingKeys = new String[bindings.size()];
@@ -87,26 +152,42 @@ public class UnstructuredTransformer {
 		}
 		logger.info("Config file loaded and parsed");
 		
+		//the models take the longest to load, so they load while everything else connects
+		models = new ModelPool<AnnotationModels>("annotation", new Callable<AnnotationModels>() {
+			@Override
+			public AnnotationModels call() {
+				return new AnnotationModels(new EntityLabeler(), new RelationExtractor());
+			}
+		}, modelInstances, modelPrewarmPaths);
+		
 		try {
 			logger.info("Connecting to rabbitMQ with this info: \nhost: " + host + "\nport: " + port + 
 					"\nexchange: " + exchange + "\nqueue: " + queue + 
 					"\nuser: " + user + "\npass: " + password);
 			consumer = new RabbitMQConsumer(exchange, queue, host, port, user, password, bindingKeys);
+			consumer.setChannels(channels);
+			consumer.addShardQueues(shardQueues);
 			consumer.openQueue();
+			consumer.enableAckBatching(ackBatchSize, ackBatchTimeout);
+			if (pushMode) {
+				consumer.startConsuming(prefetchCount);
+			}
+			backpressure = BackpressureController.fromConfig(configMap, consumer, "unstructured");
 			
-			entityLabeler = new EntityLabeler();
-			
-			relationExtractor = new RelationExtractor();
-			
-			preprocessSTIX = new PreprocessSTIX();
-			constructGraph = new GraphConstructor();
+			io = BlockingIO.fromConfig(configLoader.getConfig("io"));
+			if (io != null) {
+				logger.info("Making document service and alignment calls on " + io);
+			}
 			alignment = AlignFactory.getAlign();
+			alignmentBatcher = new AlignmentBatcher(alignment, alignBatchSize, alignBatchTimeout, io);
 			
 			configMap = configLoader.getConfig("document_service");
 			
 			host = String.valueOf(configMap.get("host"));
 			port = Integer.parseInt(String.valueOf(configMap.get("port")));
-			docClient = new DocServiceClient(host, port);
+			docFetcher = new DocumentFetcher(new DocServiceClient(host, port), DocumentCache.fromConfig(configMap), 1, io);
+			
+			Metrics.start(configLoader.getConfig("metrics"));
 		} catch (IOException e) {
 			logger.error("Error initializing Alignment and/or DB connection.", e);
 			System.exit(-4);
@@ -116,23 +197,29 @@ public class UnstructuredTransformer {
 
 	
 	public void run() {
+		startPipeline();
 		GetResponse response = null;
 		boolean fatalError = false; //TODO only RMQ errors handled this way currently
 		
 		do{
 			//Get message from the queue
 			try{
-				response = consumer.getMessage();
+				response = fetchMessage();
 			} catch (IOException e) {
 				logger.error("Encountered RabbitMQ IO error:", e);
 				fatalError = true;
 			}
-			while (response != null && !fatalError) {
+			while (response != null && !fatalError && !stageFailed) {
+				idleStrategy.reset();
 				String routingKey = response.getEnvelope().getRoutingKey();
 				long deliveryTag = response.getEnvelope().getDeliveryTag();
+				long receivedNanos = System.nanoTime();
 				
-				if (response.getBody() != null) {
-					String message = new String(response.getBody());
+				if ((response.getBody() != null) && alreadyProcessed(routingKey, deliveryTag, receivedNanos, response.getBody())) {
+					//acked without being processed again
+				}
+				else if (response.getBody() != null) {
+					String message = new String(response.getBody(), UTF_8);
 					
 					long timestamp = response.getProps().getTimestamp().getTime();
 					boolean contentIncluded = false;
@@ -146,58 +233,35 @@ public class UnstructuredTransformer {
 					//Get the document and title from the document server, if necessary
 					String content = message;
 					String title = "";
-					if (!contentIncluded) {
+					Future<JSONObject> text = null;
+					if (!contentIncluded && (io != null)) {
+						//fetched on the BlockingIO threads while the document waits for an annotator
+						text = docFetcher.prefetchExtractedText(content.trim(), routingKey);
+					} else if (!contentIncluded) {
 						String docId = content.trim();
 						logger.debug("Retrieving document content from Document-Service for id '" + docId + "'.");
 	
+						long fetchStart = System.nanoTime();
 						try {
-							JSONObject jsonObject = docClient.fetchExtractedText(docId);
+							JSONObject jsonObject = docFetcher.fetchExtractedText(docId);
 							content = jsonObject.getString("document");
 							title = jsonObject.getString("title");
+							Metrics.record(Metrics.DOC_FETCH, routingKey, fetchStart);
+							contentFetched(deliveryTag, content);
 						} catch (DocServiceException e) {
 							logger.error("Could not fetch document '" + docId + "' from Document-Service.", e);
+							forgetFingerprint(deliveryTag);
 						}
 					}
 					
-					//Label the entities/concepts in the document
-					Annotation annotatedDoc = entityLabeler.getAnnotatedDoc(title, content);
-					
-					//Extract the data source name from the routing key
-					String dataSource = routingKey;
-					int index = routingKey.indexOf(PROCESS_NAME.toLowerCase());
-					if (index > -1) {
-						dataSource = routingKey.substring(index + PROCESS_NAME.length());
-						if (dataSource.startsWith(".")) {
-							dataSource = dataSource.substring(1);
+					//Hand the document to the annotation stage, waiting if it is full
+					try {
+						FetchedDocument doc = new FetchedDocument(routingKey, deliveryTag, receivedNanos, message, title, content, text);
+						while (!stageFailed && !annotationQueue.offer(doc, STAGE_POLL_TIME, TimeUnit.MILLISECONDS)) {
+							//keep waiting, unless a later stage died
 						}
-					}
-					//Construct the subgraph from the concepts and relationships
-					String graphString = relationExtractor.createSubgraph(annotatedDoc, dataSource);
-					if (graphString != null) {
-						try {
-							JSONObject graph = new JSONObject(graphString);
-							StuccoExtractor stuccoExt = new StuccoExtractor(graph);
-							STIXPackage stixPackage = stuccoExt.getStixPackage();
-							Map<String, Vertex> stixElements = preprocessSTIX.normalizeSTIX(stixPackage.toXMLString());
-							graph = constructGraph.constructGraph(stixElements);
-							alignment.load(graph);
-						} catch (RuntimeException e) {
-							logger.error("Error occurred with routingKey = " + routingKey);
-							logger.error("										content = " + message);
-							logger.error("										source = " + dataSource);
-							e.printStackTrace();
-						}
-					}
-					//TODO: Add timestamp into subgraph
-					//Merge subgraph into full knowledge graph
-				//	alignment.load(graph);
-					
-					//Ack the message was processed and can be discarded from the queue
-					try{
-						logger.debug("Acking: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
-						consumer.messageProcessed(deliveryTag);
-					} catch (IOException e) {
-						logger.error("Encountered RabbitMQ IO error:", e);
+					} catch (InterruptedException e) {
+						logger.error("Interrupted while queueing document for annotation.", e);
 						fatalError = true;
 					}
 				}
@@ -205,6 +269,9 @@ public class UnstructuredTransformer {
 					try{
 						consumer.retryMessage(deliveryTag);
 						logger.debug("Retrying: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
+						if (backpressure != null) {
+							backpressure.finished(deliveryTag);
+						}
 					} catch (IOException e) {
 						logger.error("Encountered RabbitMQ IO error:", e);
 						fatalError = true;
@@ -213,7 +280,7 @@ public class UnstructuredTransformer {
 				
 				//Get next message from queue
 				try{
-					response = consumer.getMessage();
+					response = fetchMessage();
 				} catch (IOException e) {
 					logger.error("Encountered RabbitMQ IO error:", e);
 					fatalError = true;
@@ -221,13 +288,24 @@ public class UnstructuredTransformer {
 			}
 			
 			//Either the queue is empty, or an error occurred.
-			//Either way, sleep for a bit to prevent rapid loop of re-starting.
-			try {
-				Thread.sleep(sleepTime);
-			} catch (InterruptedException consumed) {
-				//don't care in this case, exiting anyway.
+			//If staying up, wait for more messages, backing off while the queue stays empty.
+			if (persistent && !fatalError) {
+				try {
+					idleStrategy.idle(consumer);
+				} catch (InterruptedException e) {
+					logger.info("Interrupted while waiting for messages, shutting down.");
+					fatalError = true;
+				}
 			}
-		} while (persistent && !fatalError);
+		} while (persistent && !fatalError && !stageFailed);
+		stopPipeline();
+		if (backpressure != null) {
+			logger.info("Backpressure: " + backpressure);
+		}
+		Metrics.stop();
+		if (docFetcher.getCache() != null) {
+			logger.info("Document cache: " + docFetcher.getCache());
+		}
 		try {
 			consumer.close();
 		} catch (IOException e) {
@@ -235,6 +313,391 @@ public class UnstructuredTransformer {
 			//don't care in this case, exiting anyway.
 		}
 	}
+	
+	/**
+	 * Acks the message right away if its fingerprint shows it was already processed, whether it
+	 * was redelivered or sent again.  Otherwise its fingerprint is recorded once it is acked.
+	 * @return true if the message was acked
+	 */
+	private boolean alreadyProcessed(String routingKey, long deliveryTag, long receivedNanos, byte[] body) {
+		if (fingerprints == null) {
+			return false;
+		}
+		long fingerprint = FingerprintStore.fingerprint(routingKey, body);
+		if (fingerprints.contains(fingerprint)) {
+			logger.debug("Already processed: " + routingKey + " deliveryTag=[" + deliveryTag + "]");
+			Metrics.increment(Metrics.DUPLICATE_MESSAGES, routingKey);
+			ack(new FetchedDocument(routingKey, deliveryTag, receivedNanos, null, null, null, null));
+			return true;
+		}
+		pendingFingerprints.put(deliveryTag, fingerprint);
+		return false;
+	}
+	
+	/**
+	 * Keeps a message that could not be processed fully from being skipped when it is sent again.
+	 */
+	private void forgetFingerprint(long deliveryTag) {
+		pendingFingerprints.remove(deliveryTag);
+	}
+	
+	/**
+	 * Counts fetched content towards the bytes in flight, two bytes a char.
+	 */
+	private void contentFetched(long deliveryTag, String content) {
+		if ((backpressure != null) && (content != null)) {
+			backpressure.addBytes(deliveryTag, 2L * content.length());
+		}
+	}
+	
+	/**
+	 * @return the next message, or null if there is none
+	 */
+	private GetResponse fetchMessage() throws IOException {
+		BackpressureController.Admission admission = (backpressure != null) ? backpressure.admit(BACKPRESSURE_WAIT, TimeUnit.MILLISECONDS) : BackpressureController.Admission.OPEN;
+		if (admission == BackpressureController.Admission.PAUSED) {
+			return null;
+		}
+		long start = System.nanoTime();
+		GetResponse response = (admission == BackpressureController.Admission.PROBE) ? consumer.probeMessage() : consumer.getMessage();
+		if (response != null) {
+			Metrics.record(Metrics.QUEUE_FETCH, response.getEnvelope().getRoutingKey(), start);
+			if (backpressure != null) {
+				backpressure.received(response.getEnvelope().getDeliveryTag(), (response.getBody() == null) ? 0 : response.getBody().length);
+			}
+		}
+		return response;
+	}
+	
+	private void startPipeline() {
+		annotationQueue = new ArrayBlockingQueue<FetchedDocument>(pipelineQueueSize);
+		alignmentQueue = new ArrayBlockingQueue<AnnotatedDocument>(pipelineQueueSize);
+		runningAnnotators = new AtomicInteger(annotationThreads);
+		annotators = new Thread[annotationThreads];
+		for (int i = 0; i < annotationThreads; i++) {
+			annotators[i] = new Thread(new AnnotationStage(), "unstructured-annotator-" + i);
+			annotators[i].start();
+		}
+		aligner = new Thread(new AlignmentStage(), "unstructured-aligner");
+		aligner.start();
+		logger.info("Started pipeline with " + annotationThreads + " annotation thread(s) and queue size " + pipelineQueueSize);
+		if (!models.isLoaded()) {
+			logger.info("Taking messages while the annotation models load.");
+		}
+	}
+	
+	/**
+	 * Lets the queued documents drain through the later stages, then waits for them to finish.
+	 */
+	private void stopPipeline() {
+		try {
+			if (stageFailed) {
+				//nothing left to drain into, unacked messages will be redelivered
+				for (Thread annotator : annotators) {
+					annotator.interrupt();
+				}
+				aligner.interrupt();
+			} else {
+				for (int i = 0; i < annotationThreads; i++) {
+					annotationQueue.put(FetchedDocument.END_OF_STREAM);
+				}
+			}
+			for (Thread annotator : annotators) {
+				annotator.join();
+			}
+			aligner.join();
+		} catch (InterruptedException consumed) {
+			//don't care in this case, exiting anyway.
+		}
+		models.close();
+		alignmentBatcher.close();
+		if (io != null) {
+			try {
+				io.shutdown(STAGE_POLL_TIME, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException consumed) {
+				//exiting anyway.
+			}
+		}
+		if (deduplicator != null) {
+			try {
+				deduplicator.close();
+			} catch (IOException e) {
+				logger.warn("Could not save subgraph hashes.", e);
+			}
+			logger.info("Subgraph dedup: " + deduplicator);
+		}
+		if (fingerprints != null) {
+			fingerprints.close();
+		}
+	}
+	
+	/**
+	 * Extracts the data source name from the routing key.
+	 */
+	private static String getDataSource(String routingKey) {
+		String dataSource = routingKey;
+		int index = routingKey.indexOf(PROCESS_NAME.toLowerCase());
+		if (index > -1) {
+			dataSource = routingKey.substring(index + PROCESS_NAME.length());
+			if (dataSource.startsWith(".")) {
+				dataSource = dataSource.substring(1);
+			}
+		}
+		return dataSource;
+	}
+	
+	/**
+	 * Labels entities and extracts relations.  EntityLabeler and RelationExtractor are not
+	 * thread-safe, so each document borrows a set of models from the pool for the time it takes to
+	 * annotate it.
+	 */
+	private class AnnotationStage implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				STIXNormalizer stixNormalizer = new STIXNormalizer();
+				GraphConstructor constructGraph = new GraphConstructor();
+				
+				FetchedDocument doc = annotationQueue.take();
+				while (doc != FetchedDocument.END_OF_STREAM) {
+					String title = doc.title;
+					String content = doc.content;
+					if (doc.text != null) {
+						try {
+							JSONObject text = DocumentFetcher.await(doc.text);
+							content = text.getString("document");
+							title = text.getString("title");
+							contentFetched(doc.deliveryTag, content);
+						} catch (DocServiceException e) {
+							logger.error("Could not fetch document '" + doc.message.trim() + "' from Document-Service.", e);
+							forgetFingerprint(doc.deliveryTag);
+						}
+					}
+					
+					//Label the entities/concepts in the document
+					String dataSource = getDataSource(doc.routingKey);
+					String graphString;
+					AnnotationModels annotationModels = models.take();
+					long start = System.nanoTime();
+					try {
+						Annotation annotatedDoc = annotationModels.entityLabeler.getAnnotatedDoc(title, content);
+						
+						//Construct the subgraph from the concepts and relationships
+						graphString = annotationModels.relationExtractor.createSubgraph(annotatedDoc, dataSource);
+					} finally {
+						models.release(annotationModels);
+					}
+					Metrics.record(Metrics.EXTRACT, doc.routingKey, start);
+					JSONObject graph = null;
+					if (graphString != null) {
+						try {
+							graph = new JSONObject(graphString);
+							StuccoExtractor stuccoExt = new StuccoExtractor(graph);
+							STIXPackage stixPackage = stuccoExt.getStixPackage();
+							start = System.nanoTime();
+							Map<String, Vertex> stixElements = stixNormalizer.normalize(stixPackage);
+							Metrics.record(Metrics.NORMALIZE, doc.routingKey, start);
+							start = System.nanoTime();
+							graph = constructGraph.constructGraph(stixElements);
+							Metrics.record(Metrics.GRAPH, doc.routingKey, start);
+						} catch (RuntimeException e) {
+							logger.error("Error occurred with routingKey = " + doc.routingKey);
+							logger.error("										content = " + doc.message);
+							logger.error("										source = " + dataSource);
+							e.printStackTrace();
+							graph = null;
+						}
+					}
+					AnnotatedDocument annotated = new AnnotatedDocument(doc, graph);
+					while (!stageFailed && !alignmentQueue.offer(annotated, STAGE_POLL_TIME, TimeUnit.MILLISECONDS)) {
+						//keep waiting, unless the alignment stage died
+					}
+					doc = annotationQueue.take();
+				}
+			} catch (InterruptedException consumed) {
+				//exiting anyway.
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error in annotation stage.", e);
+				stageFailed = true;
+			} finally {
+				if ((runningAnnotators.decrementAndGet() == 0) && !stageFailed) {
+					//last annotator out tells the alignment stage to finish
+					try {
+						alignmentQueue.put(AnnotatedDocument.END_OF_STREAM);
+					} catch (InterruptedException consumed) {
+						//exiting anyway.
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Merges subgraphs into the knowledge graph and acks their messages, one document at a time.
+	 */
+	private class AlignmentStage implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				AnnotatedDocument annotated = alignmentQueue.take();
+				while (annotated != AnnotatedDocument.END_OF_STREAM) {
+					FetchedDocument doc = annotated.document;
+					//TODO: Add timestamp into subgraph
+					//Merge subgraph into full knowledge graph, the message is acked once its batch is loaded
+					if ((annotated.graph == null) || !align(doc.routingKey, annotated.graph, new AckOnLoad(doc))) {
+						ack(doc);
+					}
+					annotated = alignmentQueue.take();
+				}
+			} catch (InterruptedException consumed) {
+				//exiting anyway.
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error in alignment stage.", e);
+				stageFailed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Hands a subgraph to alignment, minus the vertices and edges that were loaded within the
+	 * dedup TTL.
+	 * @return false if nothing was left to load, in which case listener is not told anything
+	 */
+	private boolean align(String routingKey, JSONObject graph, AlignmentBatcher.Listener listener) {
+		if (deduplicator == null) {
+			alignmentBatcher.add(graph, listener);
+			return true;
+		}
+		SubgraphDeduplicator.Result result = deduplicator.filter(graph);
+		if (result.graph == null) {
+			Metrics.increment(Metrics.DUPLICATE_SUBGRAPHS, routingKey);
+			return false;
+		}
+		alignmentBatcher.add(result.graph, deduplicator.listener(result, listener));
+		return true;
+	}
+	
+	private void ack(FetchedDocument doc) {
+		//Ack the message was processed and can be discarded from the queue
+		long start = System.nanoTime();
+		try{
+			logger.debug("Acking: " + doc.routingKey + " deliveryTag=[" + doc.deliveryTag + "]");
+			consumer.messageProcessed(doc.deliveryTag);
+		} catch (IOException e) {
+			logger.error("Encountered RabbitMQ IO error:", e);
+			stageFailed = true;
+			return;
+		}
+		Metrics.record(Metrics.ACK, doc.routingKey, start);
+		Metrics.record(Metrics.TOTAL, doc.routingKey, doc.receivedNanos);
+		Long fingerprint = pendingFingerprints.remove(doc.deliveryTag);
+		if (fingerprint != null) {
+			fingerprints.add(fingerprint);
+		}
+		if (backpressure != null) {
+			backpressure.finished(doc.deliveryTag);
+		}
+	}
+	
+	/**
+	 * Requeues the message of a document whose subgraph could not be loaded.
+	 */
+	private void retry(FetchedDocument doc) {
+		try {
+			consumer.retryMessage(doc.deliveryTag);
+			logger.debug("Retrying: " + doc.routingKey + " deliveryTag=[" + doc.deliveryTag + "]");
+		} catch (IOException e) {
+			logger.error("Encountered RabbitMQ IO error:", e);
+			stageFailed = true;
+			return;
+		}
+		if (backpressure != null) {
+			backpressure.finished(doc.deliveryTag);
+		}
+	}
+	
+	/**
+	 * Acks a document once its subgraph has been merged into the knowledge graph.
+	 */
+	private class AckOnLoad implements AlignmentBatcher.Listener {
+		private final FetchedDocument doc;
+		private final long addedNanos;
+		
+		AckOnLoad(FetchedDocument doc) {
+			this.doc = doc;
+			this.addedNanos = System.nanoTime();
+		}
+		
+		@Override
+		public void committed() {
+			Metrics.record(Metrics.ALIGN, doc.routingKey, addedNanos);
+			if (backpressure != null) {
+				backpressure.alignmentLatency(addedNanos);
+			}
+			ack(doc);
+		}
+		
+		@Override
+		public void failed(RuntimeException e) {
+			logger.error("Error occurred with routingKey = " + doc.routingKey);
+			logger.error("										content = " + doc.message);
+			e.printStackTrace();
+			forgetFingerprint(doc.deliveryTag);
+			if (backpressure != null) {
+				backpressure.alignmentLatency(addedNanos);
+			}
+			//requeued rather than acked, so it is loaded again once the database is back
+			retry(doc);
+		}
+	}
+	
+	private static class FetchedDocument {
+		static final FetchedDocument END_OF_STREAM = new FetchedDocument(null, -1, 0, null, null, null, null);
+		
+		final String routingKey;
+		final long deliveryTag;
+		//System.nanoTime() when the message was taken off the queue
+		final long receivedNanos;
+		final String message;
+		final String title;
+		final String content;
+		//the extracted text still being fetched, which replaces title and content, or null
+		final Future<JSONObject> text;
+		
+		FetchedDocument(String routingKey, long deliveryTag, long receivedNanos, String message, String title, String content, Future<JSONObject> text) {
+			this.routingKey = routingKey;
+			this.deliveryTag = deliveryTag;
+			this.receivedNanos = receivedNanos;
+			this.message = message;
+			this.title = title;
+			this.content = content;
+			this.text = text;
+		}
+	}
+	
+	private static class AnnotationModels {
+		final EntityLabeler entityLabeler;
+		final RelationExtractor relationExtractor;
+		
+		AnnotationModels(EntityLabeler entityLabeler, RelationExtractor relationExtractor) {
+			this.entityLabeler = entityLabeler;
+			this.relationExtractor = relationExtractor;
+		}
+	}
+	
+	private static class AnnotatedDocument {
+		static final AnnotatedDocument END_OF_STREAM = new AnnotatedDocument(null, null);
+		
+		final FetchedDocument document;
+		final JSONObject graph;
+		
+		AnnotatedDocument(FetchedDocument document, JSONObject graph) {
+			this.document = document;
+			this.graph = graph;
+		}
+	}
 
 
 	/**